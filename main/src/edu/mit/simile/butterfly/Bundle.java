@@ -0,0 +1,367 @@
+package edu.mit.simile.butterfly;
+
+import java.io.IOException;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This class represents a bundle of javascript or CSS files, possibly taken
+ * from the modules that a module depends upon, that gets served as a single
+ * file. A bundle is served under a URL that contains the hash of its content,
+ * so that it can be cached forever: when any of its files changes, the bundle
+ * is built again and gets a new URL.
+ *
+ * The files of a bundle are either paths relative to the module that declares
+ * it or paths relative to another module, as in "[#jquery#]/jquery.js". The
+ * relative URLs of CSS files are rewritten so that they keep pointing to the
+ * same place once the files are served from where the bundle is.
+ */
+public class Bundle {
+
+    private static final Logger _logger = LoggerFactory.getLogger("butterfly.bundle");
+
+    /*
+     * where bundles are served from, relative to the module that declares them
+     */
+    public static final String PATH = "bundles/";
+
+    private static final Pattern MODULE_PATTERN = Pattern.compile("^\\[#([^#\\]]+)#\\]/?(.*)$");
+    private static final Pattern URL_PATTERN = Pattern.compile("url\\(\\s*(['\"]?)([^'\")]*)\\1\\s*\\)");
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final ButterflyModuleImpl _module;
+    private final String _name;
+    private final String _extension;
+    private final List<String> _files;
+    private final boolean _minify;
+
+    private volatile Version _version;
+
+    public Bundle(ButterflyModuleImpl module, String name, List<String> files, boolean minify) {
+        _module = module;
+        _name = name;
+        _extension = name.substring(name.lastIndexOf('.') + 1);
+        _files = new ArrayList<String>();
+        for (String file : files) {
+            file = file.trim();
+            if (file.length() > 0) {
+                _files.add(file);
+            }
+        }
+        _minify = minify;
+    }
+
+    public String getName() {
+        return _name;
+    }
+
+    public String getExtension() {
+        return _extension;
+    }
+
+    /**
+     * Returns the path of the current version of the bundle as served with the
+     * given base URL, relative to the module, as in "bundles/main.0a1b2c3d4e5f.js".
+     */
+    public String getPath(String baseURL) throws IOException {
+        int dot = _name.lastIndexOf('.');
+        return PATH + _name.substring(0, dot) + "." + getVersion().getHash(baseURL) + _name.substring(dot);
+    }
+
+    /**
+     * Returns the current version of the bundle, building it again if any of
+     * its files (or the way they resolve) changed since it was last built.
+     */
+    public Version getVersion() throws IOException {
+        Version version = _version;
+        if (version == null || !version.isCurrent()) {
+            synchronized (this) {
+                version = _version;
+                if (version == null || !version.isCurrent()) {
+                    version = build();
+                    _version = version;
+                }
+            }
+        }
+        return version;
+    }
+
+    /**
+     * A version of the bundle, that is the content built out of a given
+     * version of each of its files.
+     */
+    public class Version {
+
+        // the hash of the content with its links left unresolved
+        public final String hash;
+        public final long lastModified;
+        public final LinkTemplate template;
+
+        final int wiringHash;
+        final List<URL> sources;
+        final List<String> hashes;
+
+        private final AtomicReference<Rendering> _rendering = new AtomicReference<Rendering>();
+
+        Version(String hash, long lastModified, LinkTemplate template, int wiringHash, List<URL> sources, List<String> hashes) {
+            this.hash = hash;
+            this.lastModified = lastModified;
+            this.template = template;
+            this.wiringHash = wiringHash;
+            this.sources = sources;
+            this.hashes = hashes;
+        }
+
+        boolean isCurrent() {
+            if (wiringHash != _module.getWiringHash()) {
+                return false;
+            }
+            for (int i = 0; i < _files.size(); i++) {
+                URL source = resolve(_files.get(i));
+                if (source == null ? sources.get(i) != null : sources.get(i) == null || !source.toString().equals(sources.get(i).toString())) {
+                    return false;
+                }
+                if (source != null) {
+                    ButterflyModuleImpl.ResourceMetadata metadata = _module.getMetadata(source);
+                    if (metadata == null || !metadata.hash.equals(hashes.get(i))) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Returns the hash of the bundle as served with the given base URL in
+         * front of its links, which is what its path and ETag are made of.
+         */
+        public String getHash(String baseURL) throws IOException {
+            return (baseURL == null) ? hash : Bundle.hash(hash + "\n" + baseURL);
+        }
+
+        /**
+         * Returns the content of the bundle, with the given base URL in front of its links.
+         */
+        public byte[] getContent(String baseURL) throws IOException {
+            return getRendering(baseURL).content;
+        }
+
+        /**
+         * Returns the content of the bundle gzipped, computing it only once per base URL.
+         */
+        public byte[] getCompressed(String baseURL) throws IOException {
+            Rendering rendering = getRendering(baseURL);
+            if (rendering.compressed == null) {
+                Rendering compressed = new Rendering(baseURL, rendering.content, ButterflyModuleImpl.gzip(rendering.content));
+                _rendering.compareAndSet(rendering, compressed);
+                rendering = compressed;
+            }
+            return rendering.compressed;
+        }
+
+        /*
+         * the last base URL the bundle was rendered for, kept together with
+         * what was rendered so that they are always swapped as a whole
+         */
+        private Rendering getRendering(String baseURL) throws IOException {
+            Rendering rendering = _rendering.get();
+            if (rendering == null || !StringUtils.equals(baseURL, rendering.baseURL)) {
+                rendering = new Rendering(baseURL, template.toString(baseURL).getBytes("UTF-8"), null);
+                _rendering.set(rendering);
+            }
+            return rendering;
+        }
+    }
+
+    private static class Rendering {
+        final String baseURL;
+        final byte[] content;
+        final byte[] compressed;
+
+        Rendering(String baseURL, byte[] content, byte[] compressed) {
+            this.baseURL = baseURL;
+            this.content = content;
+            this.compressed = compressed;
+        }
+    }
+
+    // ----------------------------------------------------------------------------
+
+    private Version build() throws IOException {
+        int wiringHash = _module.getWiringHash();
+        List<URL> sources = new ArrayList<URL>(_files.size());
+        List<String> hashes = new ArrayList<String>(_files.size());
+        StringBuilder text = new StringBuilder();
+        long lastModified = 0;
+
+        for (String file : _files) {
+            URL source = resolve(file);
+            sources.add(source);
+            ButterflyModuleImpl.ResourceMetadata metadata = (source == null) ? null : _module.getMetadata(source);
+            hashes.add((metadata == null) ? null : metadata.hash);
+            if (metadata == null) {
+                _logger.warn("Could not find '{}' of bundle '{}' in module '{}'", new Object[] { file, _name, _module.getName() });
+                continue;
+            }
+            lastModified = Math.max(lastModified, metadata.lastModified);
+
+            String content = IOUtils.toString(source, "UTF-8");
+            if ("css".equals(_extension)) {
+                content = rebase(content, file);
+            }
+            if (_minify) {
+                content = ("css".equals(_extension)) ? minifyCSS(content) : minifyJS(content);
+            }
+            text.append(content);
+            text.append(("js".equals(_extension)) ? "\n;\n" : "\n");
+        }
+
+        LinkTemplate template = LinkTemplate.compile(_module, text.toString());
+        String hash = hash(template.toString(null) + "\n" + wiringHash);
+        _logger.debug("Built bundle '{}' of module '{}' [{}]", new Object[] { _name, _module.getName(), hash });
+        return new Version(hash, lastModified, template, wiringHash, sources, hashes);
+    }
+
+    private URL resolve(String file) {
+        Matcher m = MODULE_PATTERN.matcher(file);
+        if (m.matches()) {
+            ButterflyModule module = _module.getModule(m.group(1));
+            return (module == null) ? null : module.getResource(m.group(2));
+        }
+        return _module.getResource(file);
+    }
+
+    /*
+     * make the relative URLs of the given CSS file relative to where the bundle is served instead
+     */
+    private String rebase(String css, String file) {
+        ButterflyModule source = _module;
+        Matcher m = MODULE_PATTERN.matcher(file);
+        if (m.matches()) {
+            source = _module.getModule(m.group(1));
+            file = m.group(2);
+        }
+        MountPoint from = _module.getMountPoint();
+        MountPoint to = (source == null) ? null : source.getMountPoint();
+        if (from == null || to == null) {
+            return css;
+        }
+        String prefix = relativize(from.getMountPoint() + PATH, to.getMountPoint() + file.substring(0, file.lastIndexOf('/') + 1));
+
+        StringBuffer b = new StringBuffer(css.length() + 256);
+        m = URL_PATTERN.matcher(css);
+        while (m.find()) {
+            String url = m.group(2).trim();
+            if (isRelative(url)) {
+                url = prefix + url;
+            }
+            m.appendReplacement(b, Matcher.quoteReplacement("url(" + m.group(1) + url + m.group(1) + ")"));
+        }
+        m.appendTail(b);
+        return b.toString();
+    }
+
+    private static boolean isRelative(String url) {
+        return url.length() > 0 && url.charAt(0) != '/' && url.charAt(0) != '#' && url.charAt(0) != '[' && url.indexOf(':') < 0;
+    }
+
+    /*
+     * the relative path that leads from the first folder to the second one
+     */
+    static String relativize(String from, String to) {
+        String[] a = from.split("/");
+        String[] b = to.split("/");
+        int common = 0;
+        while (common < a.length && common < b.length && a[common].equals(b[common])) {
+            common++;
+        }
+        StringBuilder path = new StringBuilder();
+        for (int i = common; i < a.length; i++) {
+            if (a[i].length() > 0) path.append("../");
+        }
+        for (int i = common; i < b.length; i++) {
+            if (b[i].length() > 0) path.append(b[i]).append('/');
+        }
+        return path.toString();
+    }
+
+    /*
+     * drop comments and the whitespace that doesn't matter, leaving strings alone
+     */
+    static String minifyCSS(String css) {
+        StringBuilder b = new StringBuilder(css.length());
+        int length = css.length();
+        boolean space = false;
+        for (int i = 0; i < length; i++) {
+            char c = css.charAt(i);
+            if (c == '/' && i + 1 < length && css.charAt(i + 1) == '*') {
+                int end = css.indexOf("*/", i + 2);
+                i = (end < 0) ? length : end + 1;
+                space = true;
+            } else if (Character.isWhitespace(c)) {
+                space = true;
+            } else {
+                if (space && b.length() > 0 && "{};,".indexOf(c) < 0 && "{};,".indexOf(b.charAt(b.length() - 1)) < 0) {
+                    b.append(' ');
+                }
+                space = false;
+                if (c == '"' || c == '\'') {
+                    int end = i + 1;
+                    while (end < length && css.charAt(end) != c && css.charAt(end) != '\n') {
+                        if (css.charAt(end) == '\\') end++;
+                        end++;
+                    }
+                    end = Math.min(end, length - 1);
+                    b.append(css, i, end + 1);
+                    i = end;
+                } else {
+                    b.append(c);
+                }
+            }
+        }
+        return b.toString();
+    }
+
+    /*
+     * javascript can't be told apart from regular expressions without parsing it,
+     * so only indentation, trailing whitespace and blank lines are dropped
+     */
+    static String minifyJS(String js) {
+        StringBuilder b = new StringBuilder(js.length());
+        boolean continued = false;
+        for (String line : js.split("\r?\n")) {
+            String trimmed = (continued) ? line : line.trim();
+            if (trimmed.length() > 0 || continued) {
+                b.append(trimmed).append('\n');
+            }
+            continued = line.endsWith("\\");
+        }
+        return b.toString();
+    }
+
+    private static String hash(String text) throws IOException {
+        try {
+            byte[] bytes = MessageDigest.getInstance("SHA-1").digest(text.getBytes("UTF-8"));
+            char[] chars = new char[12];
+            for (int i = 0; i < 6; i++) {
+                chars[2 * i] = HEX[(bytes[i] >> 4) & 0xf];
+                chars[2 * i + 1] = HEX[bytes[i] & 0xf];
+            }
+            return new String(chars);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+}
@@ -15,6 +15,8 @@ import java.security.AccessControlException;
 import java.security.AccessController;
 import java.security.PrivilegedAction;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.HashMap;
@@ -28,6 +30,10 @@ import java.util.Set;
 import java.util.TimeZone;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletContext;
@@ -40,14 +46,21 @@ import javax.servlet.http.HttpServletResponse;
 import org.apache.commons.collections.ExtendedProperties;
 import org.apache.velocity.app.VelocityEngine;
 import org.apache.velocity.runtime.RuntimeConstants;
+import org.mozilla.javascript.ClassCache;
 import org.mozilla.javascript.Context;
 import org.mozilla.javascript.ContextFactory;
 import org.mozilla.javascript.Script;
+import org.mozilla.javascript.WrapFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import edu.mit.simile.butterfly.velocity.ButterflyResourceCache;
 import edu.mit.simile.butterfly.velocity.ButterflyResourceLoader;
+import edu.mit.simile.butterfly.velocity.ButterflyResourceManager;
+import edu.mit.simile.butterfly.velocity.ButterflyVelocityEngine;
 import edu.mit.simile.butterfly.velocity.Super;
+import edu.mit.simile.butterfly.velocity.TemplateCompiler;
+import edu.mit.simile.butterfly.velocity.TemplatePrecompiler;
 
 /**
  * This is the Butterfly servlet and the main entry point
@@ -66,6 +79,10 @@ public class Butterfly extends HttpServlet {
 
     private static final long watcherDelay = 1000;
     
+    // how long the modules of a replaced configuration are kept around 
+    // to finish serving the requests that were dispatched to them
+    private static final long retireDelay = 60 * 1000;
+    
     public static final String NAME = "butterfly.name";
     public static final String APPENGINE = "butterfly.appengine";
     public static final String AUTORELOAD = "butterfly.autoreload";
@@ -76,6 +93,15 @@ public class Butterfly extends HttpServlet {
     public static final String DEFAULT_MOUNTPOINT = "butterfly.default.mountpoint";
     public static final String MODULES_IGNORE = "butterfly.modules.ignore";
     public static final String MODULES_PATH = "butterfly.modules.path";
+    public static final String SHARED_SCOPE = "butterfly.scope.shared";
+    public static final String RENDER_CACHE_SIZE = "butterfly.cache.render.size";
+    public static final String COMPRESSION_THRESHOLD = "butterfly.compression.threshold";
+    public static final String JSON_MAX_SIZE = "butterfly.json.max_size";
+    public static final String JSON_MAX_DEPTH = "butterfly.json.max_depth";
+    public static final String LESS_PRECOMPILE = "butterfly.less.precompile";
+    public static final String TEMPLATING_PRODUCTION = "butterfly.templating.production";
+    public static final String TEMPLATING_PRECOMPILE = "butterfly.templating.precompile";
+    public static final String TEMPLATING_COMPILE = "butterfly.templating.compile";
     
     public static final String MAIN_ZONE = "main";
 
@@ -140,10 +166,11 @@ public class Butterfly extends HttpServlet {
     
     // ---------------------------------------------------------------
 
-    transient private Logger _logger;
+    transient private Logger _logger = LoggerFactory.getLogger("butterfly");
 
     private boolean _autoreload;
     private boolean _appengine;
+    private boolean _sharedScope;
     private String _name;
     private String _default_mountpoint;
     private int _routingCookieMaxAge;
@@ -156,6 +183,12 @@ public class Butterfly extends HttpServlet {
     transient protected ServletConfig _config;
     transient protected ServletContext _context;
     transient protected ButterflyMounter _mounter;
+    transient protected File _propertiesFile;
+    transient protected RenderCache _renderCache;
+    
+    // shared by all the controllers so that Java classes are reflected once, not once per request
+    transient protected ClassCache _classCache;
+    transient protected ButterflyWrapFactory _wrapFactory = new ButterflyWrapFactory();
 
     protected ExtendedProperties _properties;
     protected File _contextDir;
@@ -164,14 +197,45 @@ public class Butterfly extends HttpServlet {
     protected Exception _configurationException;
 
     protected boolean _configured = false;
+    
+    // what service() routes requests with, replaced as a whole on reconfiguration
+    transient protected volatile Configuration _configuration;
 
     protected ContextFactory contextFactory;
     
-    class ButterflyContextFactory extends ContextFactory {
+    protected static class ButterflyContextFactory extends ContextFactory {
+        
+        private final boolean dynamicScope;
+        private final WrapFactory wrapFactory;
+        
+        /*
+         * Dynamic scoping is what allows modules to share a single sealed top-level
+         * scope between requests: functions defined in the shared scope look up
+         * their free variables in the per-request scope they are invoked from.
+         */
+        public ButterflyContextFactory(boolean dynamicScope) {
+            this(dynamicScope, null);
+        }
+        
+        public ButterflyContextFactory(boolean dynamicScope, WrapFactory wrapFactory) {
+            this.dynamicScope = dynamicScope;
+            this.wrapFactory = wrapFactory;
+        }
+        
         protected void onContextCreated(Context cx) {
             cx.setOptimizationLevel(9);
+            if (wrapFactory != null) {
+                cx.setWrapFactory(wrapFactory);
+            }
             super.onContextCreated(cx);
         }
+        
+        protected boolean hasFeature(Context cx, int featureIndex) {
+            if (featureIndex == Context.FEATURE_DYNAMIC_SCOPE) {
+                return dynamicScope;
+            }
+            return super.hasFeature(cx, featureIndex);
+        }
     }    
     
     @Override
@@ -189,72 +253,32 @@ public class Butterfly extends HttpServlet {
                 
         _contextDir = new File(_context.getRealPath("/"));
         _webInfDir = new File(_contextDir, "WEB-INF");
-        _properties = new ExtendedProperties();
         _mounter = new ButterflyMounter();
 
-        // Load the butterfly properties
         String props = System.getProperty("butterfly.properties");
-        File butterflyProperties = (props == null) ? new File(_webInfDir, "butterfly.properties") : new File(props);
-
-        BufferedInputStream is = null;
-        try {
-            is = new BufferedInputStream(new FileInputStream(butterflyProperties)); 
-            _properties.load(is);
-        } catch (FileNotFoundException e) {
-            throw new ServletException("Could not find butterfly properties file",e);
-        } catch (IOException e) {
-            throw new ServletException("Could not read butterfly properties file",e);
-        } finally {
-            try {
-                is.close();
-            } catch (Exception e) {
-                // ignore
-            }
-        }
-
-        // Process eventual properties includes
-        String includes = _properties.getString("butterfly.includes");
-        if (includes != null) {
-            for (String prop : includes.split(",")) {
-                File prop_file = (prop.startsWith("/")) ? new File(prop) : new File(_webInfDir, prop);
-                try {
-                    is = new BufferedInputStream(new FileInputStream(prop_file));
-                    ExtendedProperties p = new ExtendedProperties();
-                    p.load(is);
-                    _properties.combine(p);
-                } catch (Exception e) {
-                    // ignore 
-                } finally {
-                    try {
-                        is.close();
-                    } catch (Exception e) {
-                        // ignore
-                    }
-                }
-            }
-        }
-        // Overload with properties set from the command line 
-        // using the -Dkey=value parameters to the JVM
-        Properties systemProperties = System.getProperties();
-        for (Iterator<Object> i = systemProperties.keySet().iterator(); i.hasNext(); ) {
-            String key = (String) i.next();
-            String value = systemProperties.getProperty(key);
-            _properties.setProperty(key, value);
-        }
+        _propertiesFile = (props == null) ? new File(_webInfDir, "butterfly.properties") : new File(props);
+        _properties = loadProperties(_propertiesFile);
 
         _default_mountpoint = _properties.getString(DEFAULT_MOUNTPOINT, "/modules");
         _ignores = _properties.getString(MODULES_IGNORE, "").split(",");
         
         _autoreload = _properties.getBoolean(AUTORELOAD, false);
+        _sharedScope = _properties.getBoolean(SHARED_SCOPE, false);
         
         _logger = LoggerFactory.getLogger(_name);
         
         _logger.info("Starting {} ...", _name);
 
-        _logger.info("Properties loaded from {}", butterflyProperties);
+        _logger.info("Properties loaded from {}", _propertiesFile);
 
         if (_autoreload) _logger.info("Autoreloading is enabled");
         if (_appengine) _logger.info("Running in Google App Engine");
+        if (_sharedScope) _logger.info("Controllers share a sealed scope between requests");
+        
+        long renderCacheSize = _properties.getLong(RENDER_CACHE_SIZE, 16 * 1024 * 1024);
+        if (renderCacheSize > 0) {
+            _renderCache = new RenderCache(renderCacheSize);
+        }
 
         _logger.debug("> init");
         
@@ -269,16 +293,23 @@ public class Butterfly extends HttpServlet {
             );
             
             Thread.currentThread().setContextClassLoader(_classLoader);
-            _classLoader.watch(butterflyProperties); // reload if the butterfly properties change
-            contextFactory = new ButterflyContextFactory();
+            contextFactory = new ButterflyContextFactory(_sharedScope, _wrapFactory);
             contextFactory.initApplicationClassLoader(_classLoader); // tell rhino to use this classloader as well
 
             ContextFactory.initGlobal(contextFactory);
             
+            Context context = contextFactory.enterContext();
+            try {
+                _classCache = ButterflyScope.createSharedClassCache(context);
+            } finally {
+                Context.exit();
+            }
+            
             if (_autoreload && !_appengine) {
                 _timer = new Timer(true);
-                TimerTask classloaderWatcher = _classLoader.getClassLoaderWatcher(new Trigger(_contextDir));
+                TimerTask classloaderWatcher = _classLoader.getClassLoaderWatcher(new Trigger(_contextDir), new Reconfigurer());
                 _timer.schedule(classloaderWatcher, watcherDelay, watcherDelay);
+                _classLoader.watchConfiguration(_propertiesFile); // reconfigure if the butterfly properties change
             }
         } catch (Exception e) {
             throw new ServletException("Failed to load butterfly classloader", e);
@@ -297,11 +328,85 @@ public class Butterfly extends HttpServlet {
         _logger.debug("< init");
     }
     
+    /*
+     * Loads the butterfly properties from the given file, along with the
+     * files it includes, and overloads them with the system properties.
+     */
+    protected ExtendedProperties loadProperties(File file) throws ServletException {
+        ExtendedProperties properties = new ExtendedProperties();
+
+        BufferedInputStream is = null;
+        try {
+            is = new BufferedInputStream(new FileInputStream(file)); 
+            properties.load(is);
+        } catch (FileNotFoundException e) {
+            throw new ServletException("Could not find butterfly properties file",e);
+        } catch (IOException e) {
+            throw new ServletException("Could not read butterfly properties file",e);
+        } finally {
+            try {
+                is.close();
+            } catch (Exception e) {
+                // ignore
+            }
+        }
+
+        // Process eventual properties includes
+        String includes = properties.getString("butterfly.includes");
+        if (includes != null) {
+            for (String prop : includes.split(",")) {
+                File prop_file = (prop.startsWith("/")) ? new File(prop) : new File(_webInfDir, prop);
+                try {
+                    is = new BufferedInputStream(new FileInputStream(prop_file));
+                    ExtendedProperties p = new ExtendedProperties();
+                    p.load(is);
+                    properties.combine(p);
+                } catch (Exception e) {
+                    // ignore 
+                } finally {
+                    try {
+                        is.close();
+                    } catch (Exception e) {
+                        // ignore
+                    }
+                }
+            }
+        }
+        // Overload with properties set from the command line 
+        // using the -Dkey=value parameters to the JVM
+        Properties systemProperties = System.getProperties();
+        for (Iterator<Object> i = systemProperties.keySet().iterator(); i.hasNext(); ) {
+            String key = (String) i.next();
+            String value = systemProperties.getProperty(key);
+            properties.setProperty(key, value);
+        }
+
+        return properties;
+    }
+    
     @Override
     public void destroy() {
         _logger.info("Stopping Butterfly...");
         
-        for (ButterflyModule m : _modulesByName.values()) {
+        if (_timer != null) {
+            _timer.cancel();
+        }
+        
+        Configuration configuration = _configuration;
+        if (configuration != null) {
+            destroyModules(configuration.modules);
+        }
+        
+        if (_renderCache != null) {
+            _logger.info("{}", _renderCache);
+        }
+        _logger.info("{}", _wrapFactory);
+        
+        _logger.info("done.");
+    }
+    
+    protected void destroyModules(Map<String,ButterflyModule> modules) {
+        for (ButterflyModule m : modules.values()) {
             try {
                 _logger.debug("> destroying {}", m);
                 m.destroy();
@@ -310,12 +415,6 @@ public class Butterfly extends HttpServlet {
                 _logger.error("Exception caught while destroying '" + m + "'", e);
             }
         }
-        
-        if (_timer != null) {
-            _timer.cancel();
-        }
-        
-        _logger.info("done.");
     }
     
     @SuppressWarnings("unchecked")
@@ -406,7 +505,7 @@ public class Butterfly extends HttpServlet {
             // Load the wiring properties
             File moduleWirings = absolutize(_homeDir, _properties.getString("butterfly.modules.wirings","WEB-INF/modules.properties"));
             _logger.info("Loaded module wirings from: {}", moduleWirings);
-            _classLoader.watch(moduleWirings); // reload if the module wirings change
+            _classLoader.watchConfiguration(moduleWirings); // reconfigure if the module wirings change
             FileInputStream fis = new FileInputStream(moduleWirings);
             wirings.load(fis);
             fis.close();
@@ -439,11 +538,184 @@ public class Butterfly extends HttpServlet {
         }
         _logger.info("< initialize modules");
         
+        if (_properties.getBoolean(LESS_PRECOMPILE, false)) {
+            _logger.info("> precompile stylesheets");
+            precompileStylesheets(_modulesByName.values());
+            _logger.info("< precompile stylesheets");
+        }
+        
+        if (_properties.getBoolean(TEMPLATING_PRECOMPILE, false) && _configurationException == null) {
+            _logger.info("> precompile templates");
+            try {
+                TemplatePrecompiler.precompile(_modulesByName.values());
+            } catch (Exception e) {
+                _configurationException = new Exception("Failed to precompile templates", e);
+            }
+            _logger.info("< precompile templates");
+        }
+        
+        Configuration configuration = new Configuration(_mounter, _modulesByName, _configurationException, _routingCookieMaxAge);
+        Configuration previous = _configuration;
+        if (previous != null && _configurationException != null) {
+            _logger.error("Reconfiguration failed, keeping the previous configuration", _configurationException);
+            destroyModules(configuration.modules);
+        } else {
+            _configuration = configuration;
+            if (previous != null) {
+                if (_renderCache != null) {
+                    _renderCache.clear();
+                }
+                retire(previous);
+            }
+        }
+        
         _configured = true;
         
         _logger.debug("< configure");
     }
     
+    /*
+     * compile all the .less stylesheets of the given modules ahead of their first
+     * request, spreading the work over as many threads as there are processors
+     */
+    protected void precompileStylesheets(Collection<ButterflyModule> modules) {
+        ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        final AtomicInteger count = new AtomicInteger();
+        for (ButterflyModule m : modules) {
+            if (m instanceof ButterflyModuleImpl) {
+                final ButterflyModuleImpl module = (ButterflyModuleImpl) m;
+                for (final String path : module.findResources(".less")) {
+                    executor.execute(new Runnable() {
+                        public void run() {
+                            try {
+                                module.getStylesheet(path);
+                                count.incrementAndGet();
+                            } catch (Exception e) {
+                                _logger.warn("Failed to precompile stylesheet " + path + " of module " + module.getName(), e);
+                            }
+                        }
+                    });
+                }
+            }
+        }
+        executor.shutdown();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        _logger.info("Precompiled {} stylesheets", count.get());
+    }
+    
+    /**
+     * Returns the wrap factory that the controllers share (and its statistics).
+     */
+    public ButterflyWrapFactory getWrapFactory() {
+        return _wrapFactory;
+    }
+    
+    /**
+     * Returns the cache of rendered text resources (and its statistics), 
+     * or null if it was disabled. 
+     */
+    public RenderCache getRenderCache() {
+        return _renderCache;
+    }
+    
+    /**
+     * Rebuilds the configuration from scratch (properties, modules, wirings and
+     * mount points) and swaps it in at once when it's ready. Requests keep 
+     * being served by the previous configuration while this happens.
+     */
+    public synchronized void reconfigure() {
+        _logger.info("Reconfiguring {} ...", _name);
+        
+        ExtendedProperties properties;
+        try {
+            properties = loadProperties(_propertiesFile);
+        } catch (ServletException e) {
+            _logger.error("Failed to reload butterfly properties, keeping the previous configuration", e);
+            return;
+        }
+        
+        Configuration previous = _configuration;
+        Tables tables = new Tables();
+
+        _properties = properties;
+        _default_mountpoint = _properties.getString(DEFAULT_MOUNTPOINT, "/modules");
+        _ignores = _properties.getString(MODULES_IGNORE, "").split(",");
+
+        _mounter = new ButterflyMounter();
+        _modulesByName = new HashMap<String,ButterflyModule>();
+        _modulesByInterface = new HashMap<String,Map<String,ButterflyModule>>();
+        _moduleProperties = new HashMap<String,ExtendedProperties>();
+        _created = new HashMap<String,Boolean>();
+        _configurationException = null;
+        
+        try {
+            configure();
+        } catch (RuntimeException e) {
+            _logger.error("Reconfiguration failed, keeping the previous configuration", e);
+            destroyModules(_modulesByName);
+        } finally {
+            if (_configuration == previous) {
+                tables.restore();
+            }
+        }
+        
+        _logger.info("done.");
+    }
+    
+    /*
+     * The tables that configure() builds the configuration with. They are rebuilt
+     * in place on reconfiguration, so the previous ones are saved to be put back 
+     * if the new configuration doesn't make it: the tables always are those of 
+     * the configuration that serves requests.
+     */
+    private class Tables {
+        final ExtendedProperties properties = _properties;
+        final String defaultMountpoint = _default_mountpoint;
+        final String[] ignores = _ignores;
+        final ButterflyMounter mounter = _mounter;
+        final Map<String,ButterflyModule> modulesByName = _modulesByName;
+        final Map<String,Map<String,ButterflyModule>> modulesByInterface = _modulesByInterface;
+        final Map<String,ExtendedProperties> moduleProperties = _moduleProperties;
+        final Map<String,Boolean> created = _created;
+        final Exception configurationException = _configurationException;
+        final File homeDir = _homeDir;
+        final int routingCookieMaxAge = _routingCookieMaxAge;
+        
+        void restore() {
+            _properties = properties;
+            _default_mountpoint = defaultMountpoint;
+            _ignores = ignores;
+            _mounter = mounter;
+            _modulesByName = modulesByName;
+            _modulesByInterface = modulesByInterface;
+            _moduleProperties = moduleProperties;
+            _created = created;
+            _configurationException = configurationException;
+            _homeDir = homeDir;
+            _routingCookieMaxAge = routingCookieMaxAge;
+        }
+    }
+    
+    /*
+     * Destroy the modules of a configuration that is no longer in use,
+     * giving them some time to finish the requests they're serving.
+     */
+    protected void retire(final Configuration configuration) {
+        if (_timer != null) {
+            _timer.schedule(new TimerTask() {
+                public void run() {
+                    destroyModules(configuration.modules);
+                }
+            }, retireDelay);
+        } else {
+            destroyModules(configuration.modules);
+        }
+    }
+    
     protected void initializeModule(String name, Set<String> initialized, Set<String> initializing) {
         ButterflyModule m = _modulesByName.get(name);
         if (m != null && !initialized.contains(name)) {
@@ -479,8 +751,9 @@ public class Butterfly extends HttpServlet {
         String path = request.getPathInfo();
         String urlQuery = request.getQueryString();
 
-        if (_mounter != null) {
-            Zone zone = _mounter.getZone(request);
+        Configuration configuration = _configuration;
+        if (configuration != null) {
+            Zone zone = configuration.mounter.getZone(request);
 
             if (_logger.isDebugEnabled()) {
                 _logger.debug("> " + method + " [" + ((zone != null) ? zone.getName() : "") + "] " + path + ((urlQuery != null) ? "?" + urlQuery : ""));
@@ -497,19 +770,15 @@ public class Butterfly extends HttpServlet {
             setRoutingCookie(request, response);
             
             try {
-                if (_configured) {
-                    if (_configurationException == null) {
-                        ButterflyModule module = _mounter.getModule(path,zone);
-                        _logger.debug("Module '{}' will handle the request", module.getName());
-                        String localPath = module.getRelativePath(request);
-                        if (!module.process(localPath, request, response)) {
-                            response.sendError(HttpServletResponse.SC_NOT_FOUND);
-                        }
-                    } else {
-                        error(response, "Butterfly Error", "Butterfly incurred in the following errors while initializing:", _configurationException);
+                if (configuration.exception == null) {
+                    ButterflyModule module = configuration.mounter.getModule(path,zone);
+                    _logger.debug("Module '{}' will handle the request", module.getName());
+                    String localPath = module.getRelativePath(request);
+                    if (!module.process(localPath, request, response)) {
+                        response.sendError(HttpServletResponse.SC_NOT_FOUND);
                     }
                 } else {
-                    delay(response, "Butterfly is still initializing...");
+                    error(response, "Butterfly Error", "Butterfly incurred in the following errors while initializing:", configuration.exception);
                 }
             } catch (FileNotFoundException e) {
                 response.sendError(HttpServletResponse.SC_NOT_FOUND);
@@ -520,6 +789,8 @@ public class Butterfly extends HttpServlet {
             response.flushBuffer();
             if (_logger.isDebugEnabled()) _logger.debug("< " + method + " [" + ((zone != null) ? zone.getName() : "") + "] " + path + ((urlQuery != null) ? "?" + urlQuery : ""));
 
+        } else if (_mounter != null) {
+            delay(response, "Butterfly is still initializing...");
         } else {
             response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
         }
@@ -553,7 +824,8 @@ public class Butterfly extends HttpServlet {
         }
         
         Cookie cookie = new Cookie(routingCookie, "." + _name); // IMPORTANT: the initial dot is required by mod_proxy_balancer!
-        cookie.setMaxAge(_routingCookieMaxAge); // delete at end of browser session
+        Configuration configuration = _configuration;
+        cookie.setMaxAge((configuration != null) ? configuration.routingCookieMaxAge : _routingCookieMaxAge); // delete at end of browser session
         cookie.setPath("/");
         response.addCookie(cookie);
     }
@@ -583,7 +855,7 @@ public class Butterfly extends HttpServlet {
                 ExtendedProperties p  = new ExtendedProperties();
                 File propFile = new File(modFile,"module.properties");
                 if (propFile.exists()) {
-                    _classLoader.watch(propFile); // reload if the the module properties change
+                    _classLoader.watchConfiguration(propFile); // reconfigure if the the module properties change
                     BufferedInputStream stream = new BufferedInputStream(new FileInputStream(propFile));
                     p.load(stream);
                     stream.close();
@@ -670,6 +942,10 @@ public class Butterfly extends HttpServlet {
         m.setMounter(_mounter);
         m.setClassLoader(_classLoader);
         m.setTimer(_timer);
+        if (m instanceof ButterflyModuleImpl) {
+            ((ButterflyModuleImpl) m).setRenderCache(_renderCache);
+            ((ButterflyModuleImpl) m).setClassCache(_classCache);
+        }
             
         _modulesByName.put(name,m);
             
@@ -810,12 +1086,91 @@ public class Butterfly extends HttpServlet {
             throw new RuntimeException("Cannot initialize the modules because I can't guess which module to mount to '/'");
         }
         
+        // now that the wiring is done, module lookups can be flattened
+        for (ButterflyModule m : _modulesByName.values()) {
+            if (m instanceof ButterflyModuleImpl) {
+                ((ButterflyModuleImpl) m).flattenModules();
+            }
+        }
+        
         _logger.trace("< wireModules()");
     }    
         
+    /*
+     * All the modules share a single velocity runtime, which is only created
+     * when the first template gets rendered. The resource loader finds templates
+     * in the module that is rendering them, and the macro libraries of each 
+     * module are passed along when it renders templates.
+     */
+    protected ButterflyVelocityEngine createTemplateEngine() throws IOException {
+        Properties properties = getTemplateProperties();
+
+        // templates can be compiled to classes as they get parsed, those that can't are interpreted
+        if (_properties.getBoolean(TEMPLATING_COMPILE, false)) {
+            return new ButterflyVelocityEngine(properties, new TemplateCompiler(_classLoader));
+        }
+        return new ButterflyVelocityEngine(properties);
+    }
+
+    /*
+     * Modules that don't extend ButterflyModuleImpl can't render thru the shared
+     * runtime, they get a velocity engine of their own as they always did, with
+     * their macro libraries as the global libraries of the engine.
+     */
+    protected VelocityEngine createTemplateEngine(ButterflyModule module, ExtendedProperties moduleProperties) throws Exception {
+        Properties properties = getTemplateProperties();
+        properties.setProperty("velocimacro.library", moduleProperties.getString("templating.macros", ""));
+        VelocityEngine velocity = new VelocityEngine();
+        velocity.setApplicationAttribute("module", module); // this is how we pass the module to the resource loader
+        velocity.init(properties);
+        return velocity;
+    }
+
+    /*
+     * the velocity properties, as they are set for the modules
+     */
+    protected Properties getTemplateProperties() throws IOException {
+        // load the default velocity properties
+        Properties properties = new Properties();
+        File velocityProperties = new File(_webInfDir, "velocity.properties");
+        _classLoader.watchConfiguration(velocityProperties); // reconfigure if the velocity properties change
+        FileInputStream fis = new FileInputStream(velocityProperties);
+        try {
+            properties.load(fis);
+        } finally {
+            fis.close();
+        }
+
+        // set properties for resource loading
+        properties.setProperty("resource.loader", "butterfly");
+        properties.setProperty("butterfly.resource.loader.class", ButterflyResourceLoader.class.getName());
+        properties.setProperty("butterfly.resource.loader.cache", "true");
+        // in production, templates are never checked by velocity, the modules drop the ones that change
+        properties.setProperty("butterfly.resource.loader.modificationCheckInterval", _properties.getBoolean(TEMPLATING_PRODUCTION, false) ? "0" : "1");
+        properties.setProperty("resource.manager.class", ButterflyResourceManager.class.getName());
+        properties.setProperty("resource.manager.cache.class", ButterflyResourceCache.class.getName());
+        properties.setProperty("butterfly.resource.loader.description", "Butterfly Resource Loader");
+
+        // macro libraries belong to modules, there are no global ones
+        properties.setProperty("velocimacro.library", "");
+
+        // Set our special parent injection directive
+        properties.setProperty("userdirective", Super.class.getName());
+
+        // Set logging properties
+        if (_appengine) {
+            properties.setProperty(RuntimeConstants.RUNTIME_LOG_LOGSYSTEM_CLASS, "org.apache.velocity.runtime.log.JdkLogChute");
+        } else {
+            properties.setProperty(RuntimeConstants.RUNTIME_LOG_LOGSYSTEM_CLASS, "org.apache.velocity.runtime.log.Log4JLogChute");
+            properties.setProperty("runtime.log.logsystem.log4j.logger", "velocity");
+        }
+        return properties;
+    }
+    
     @SuppressWarnings("unchecked")
     protected void configureModules() {
         _logger.trace("> configureModules()");
+        ButterflyVelocityEngine templateEngine = null;
         for (String name : _moduleProperties.keySet()) {
             _logger.trace("> Configuring module: {}", name);
             ExtendedProperties p = _moduleProperties.get(name);
@@ -823,46 +1178,21 @@ public class Butterfly extends HttpServlet {
             
             // make the system properties accessible to the modules
             m.setProperties(_properties);
+            if (m instanceof ButterflyModuleImpl) {
+                ((ButterflyModuleImpl) m).setModuleProperties(p);
+            }
             
             try {
                 if (p.getBoolean("templating", Boolean.TRUE)) {
                     _logger.trace("> enabling templating");
-                    // load the default velocity properties
-                    Properties properties = new Properties();
-                    File velocityProperties = new File(_webInfDir, "velocity.properties");
-                    _classLoader.watch(velocityProperties); // reload if the velocity properties change
-                    FileInputStream fis = new FileInputStream(velocityProperties);
-                    properties.load(fis);
-                    fis.close();
-        
-                    // set properties for resource loading
-                    properties.setProperty("resource.loader", "butterfly");
-                    properties.setProperty("butterfly.resource.loader.class", ButterflyResourceLoader.class.getName());
-                    properties.setProperty("butterfly.resource.loader.cache", "true");
-                    properties.setProperty("butterfly.resource.loader.modificationCheckInterval", "1");
-                    properties.setProperty("butterfly.resource.loader.description", "Butterfly Resource Loader");
-                        
-                    // set properties for macros
-                    properties.setProperty("velocimacro.library", p.getString("templating.macros", ""));
-        
-                    // Set our special parent injection directive
-                    properties.setProperty("userdirective", Super.class.getName());
-        
-                    // Set logging properties
-                    if (_appengine) {
-                        properties.setProperty(RuntimeConstants.RUNTIME_LOG_LOGSYSTEM_CLASS, "org.apache.velocity.runtime.log.JdkLogChute");
+                    if (m instanceof ButterflyModuleImpl) {
+                        if (templateEngine == null) {
+                            templateEngine = createTemplateEngine();
+                        }
+                        ((ButterflyModuleImpl) m).setSharedTemplateEngine(templateEngine);
                     } else {
-                        properties.setProperty(RuntimeConstants.RUNTIME_LOG_LOGSYSTEM_CLASS, "org.apache.velocity.runtime.log.Log4JLogChute");
-                        properties.setProperty("runtime.log.logsystem.log4j.logger", "velocity");
+                        m.setTemplateEngine(createTemplateEngine(m, p));
                     }
-
-                    // create a module-specific velocity engine
-                    VelocityEngine velocity = new VelocityEngine();
-                    velocity.setApplicationAttribute("module", m); // this is how we pass the module to the resource loader
-                    velocity.init(properties);
-                    
-                    // inject the template engine in the module
-                    m.setTemplateEngine(velocity);
                     _logger.trace("< enabling templating");
                 }
 
@@ -1017,6 +1347,38 @@ public class Butterfly extends HttpServlet {
         }
     }
     
+    /*
+     * This is an immutable snapshot of the tables that are needed to route and serve
+     * a request. configure() builds a new one and swaps it in with a single write
+     * so that requests see either the previous configuration or the new one,
+     * never a partially built one.
+     */
+    protected static final class Configuration {
+        
+        final ButterflyMounter mounter;
+        final Map<String,ButterflyModule> modules;
+        final Exception exception;
+        final int routingCookieMaxAge;
+        
+        Configuration(ButterflyMounter mounter, Map<String,ButterflyModule> modules, Exception exception, int routingCookieMaxAge) {
+            this.mounter = mounter;
+            this.modules = Collections.unmodifiableMap(modules);
+            this.exception = exception;
+            this.routingCookieMaxAge = routingCookieMaxAge;
+        }
+    }
+    
+    /*
+     * This is the trigger invoked by the butterfly classloader if any of the observed 
+     * configuration files has changed: it rebuilds the configuration in place instead 
+     * of restarting the whole context.
+     */
+    private class Reconfigurer implements Runnable {
+        public void run() {
+            reconfigure();
+        }
+    }
+    
     /*
      * This is the trigger invoked by the butterfly classloader if any of the observed classes or files 
      * has changed. This trigger attempts to find the Butterfly.class on disk and changes its lastModified
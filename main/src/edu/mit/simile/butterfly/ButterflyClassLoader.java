@@ -21,7 +21,9 @@ import org.slf4j.LoggerFactory;
  * 
  * Also, this classloader is capable of monitoring changes to the loaded classes
  * (or to special files that we want watched for changes) and it's capable of 
- * executing a given Runnable action when such changes occur. 
+ * executing a given Runnable action when such changes occur. Configuration
+ * files are watched separately and have their own action since they don't
+ * require the classloading space to be thrown away.
  */
 public class ButterflyClassLoader extends URLClassLoader {
 
@@ -34,8 +36,12 @@ public class ButterflyClassLoader extends URLClassLoader {
     }
 
     public TimerTask getClassLoaderWatcher(Runnable trigger) {
+        return getClassLoaderWatcher(trigger, trigger);
+    }
+    
+    public TimerTask getClassLoaderWatcher(Runnable trigger, Runnable reconfigure) {
         if (_watcher == null) {
-            _watcher = new ButterflyClassLoaderWatcher(trigger);
+            _watcher = new ButterflyClassLoaderWatcher(trigger, reconfigure);
         }
         return _watcher;
     }
@@ -114,6 +120,12 @@ public class ButterflyClassLoader extends URLClassLoader {
         }
     }
     
+    public void watchConfiguration(File file) {
+        if (this._watcher != null) {
+            this._watcher.watchConfiguration(file);
+        }
+    }
+    
     private void addJar(File file) {
         try  {
             URL url = file.toURI().toURL();
@@ -130,12 +142,16 @@ class ButterflyClassLoaderWatcher extends TimerTask {
     final static private Logger _logger = LoggerFactory.getLogger("butterfly.classloader.watcher");
     
     private Set<File> files;
+    private Set<File> configurations;
     private Map<File,Long> lastModifieds;
     private Runnable trigger;
+    private Runnable reconfigure;
 
-    ButterflyClassLoaderWatcher (Runnable t) {
+    ButterflyClassLoaderWatcher (Runnable t, Runnable r) {
         this.trigger = t;
+        this.reconfigure = r;
         this.files = new LinkedHashSet<File>();
+        this.configurations = new LinkedHashSet<File>();
         this.lastModifieds = new HashMap<File,Long>();
     }
         
@@ -162,27 +178,47 @@ class ButterflyClassLoaderWatcher extends TimerTask {
         }
     }
     
+    protected void watchConfiguration(File f) {
+        _logger.trace("Watching configuration {}", f);
+        synchronized(this) {
+            this.configurations.add(f);
+            this.lastModifieds.put(f, Long.valueOf(f.lastModified()));
+        }
+    }
+    
     public void run() {
         try {
-            int counter = 0;
+            int counter;
+            int configurationCounter;
 
             synchronized(this) {
-                for (File f : this.files) {
-                    if (f.lastModified() > this.lastModifieds.get(f).longValue()) {
-                        _logger.debug(f + " has changed");
-                        this.lastModifieds.put(f, Long.valueOf(f.lastModified()));
-                        counter++;
-                    }
-                }
+                counter = changed(this.files);
+                configurationCounter = changed(this.configurations);
             }
 
             if (counter > 0) {
                 _logger.debug("Classloading space has changed. Triggering the signal...");
                 this.trigger.run();
                 _logger.debug("..done");
+            } else if (configurationCounter > 0) {
+                _logger.debug("Configuration has changed. Triggering the signal...");
+                this.reconfigure.run();
+                _logger.debug("..done");
             }
         } catch (final Exception e) {
             _logger.error("Error in ButterflyClassLoaderWatcher",e);
         }
     }
+    
+    private int changed(Set<File> files) {
+        int counter = 0;
+        for (File f : files) {
+            if (f.lastModified() > this.lastModifieds.get(f).longValue()) {
+                _logger.debug(f + " has changed");
+                this.lastModifieds.put(f, Long.valueOf(f.lastModified()));
+                counter++;
+            }
+        }
+        return counter;
+    }
 }
@@ -2,11 +2,13 @@ package edu.mit.simile.butterfly;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.Reader;
 import java.io.StringWriter;
@@ -14,8 +16,13 @@ import java.io.Writer;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLConnection;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
@@ -23,13 +30,20 @@ import java.util.Map;
 import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
 
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletContext;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
 
 import org.apache.commons.collections.ExtendedProperties;
 import org.apache.commons.collections.OrderedMap;
@@ -37,9 +51,12 @@ import org.apache.commons.collections.OrderedMapIterator;
 import org.apache.commons.collections.map.ListOrderedMap;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.velocity.Template;
 import org.apache.velocity.VelocityContext;
 import org.apache.velocity.app.VelocityEngine;
 import org.apache.velocity.exception.ResourceNotFoundException;
+import org.mozilla.javascript.ClassCache;
 import org.mozilla.javascript.Context;
 import org.mozilla.javascript.ContextAction;
 import org.mozilla.javascript.ContextFactory;
@@ -47,14 +64,17 @@ import org.mozilla.javascript.EcmaError;
 import org.mozilla.javascript.Function;
 import org.mozilla.javascript.Script;
 import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.metaweb.lessen.Utilities;
-import com.metaweb.lessen.tokenizers.CondensingTokenizer;
-import com.metaweb.lessen.tokenizers.IndentingTokenizer;
 import com.metaweb.lessen.tokenizers.Tokenizer;
 
+import edu.mit.simile.butterfly.velocity.ButterflyResourceCache;
+import edu.mit.simile.butterfly.velocity.ButterflyResourceLoader;
+import edu.mit.simile.butterfly.velocity.ButterflyVelocityEngine;
+
 
 /**
  * This class is the base implementation of ButterflyModule and 
@@ -80,21 +100,41 @@ public class ButterflyModuleImpl implements ButterflyModule {
     protected Set<String> _implementations = new LinkedHashSet<String>();
     protected Map<String,ButterflyModule> _dependencies = new HashMap<String,ButterflyModule>();
     protected ExtendedProperties _properties;
+    protected ExtendedProperties _moduleProperties;
     protected Map<String,ButterflyModule> _modules;
     protected VelocityEngine _templateEngine;
+    protected ButterflyResourceCache _templateCache;
+    protected ButterflyVelocityEngine _sharedTemplateEngine;
+    protected List<String> _macroLibraries;
     protected OrderedMap _scripts = new ListOrderedMap();
     protected Set<ButterflyScriptableObject> _scriptables = new LinkedHashSet<ButterflyScriptableObject>();
-    protected Set<TimerTask> _packers = new HashSet<TimerTask>();
+    protected boolean _scopeShared;
+    protected volatile SharedScope _sharedScope;
+    
+    // bumped every time a script of this module changes so that shared scopes know when they are stale
+    private final AtomicLong _scriptsVersion = new AtomicLong();
     
     // ------------------------------------------------------------------------------------------------
     
     public void init(ServletConfig config) throws Exception {
         _config = config;
+        _scopeShared = (_properties != null) && _properties.getBoolean(Butterfly.SHARED_SCOPE, false);
+        _compressionThreshold = (_properties != null) ? _properties.getInt(Butterfly.COMPRESSION_THRESHOLD, 1024) : 1024;
+        
+        indexResources();
+        if (_timer != null && _path != null) {
+            _resourceWatcher = new ResourceWatcher();
+            _timer.schedule(_resourceWatcher, RESOURCE_WATCHER_DELAY, RESOURCE_WATCHER_DELAY);
+        }
         
         scriptInit();
     }
     
     public void destroy() throws Exception {
+        if (_resourceWatcher != null) {
+            _resourceWatcher.cancel();
+        }
+        
         for (ButterflyScriptableObject scriptable : _scriptables) {
         	scriptable.destroy();
         }
@@ -128,6 +168,7 @@ public class ButterflyModuleImpl implements ButterflyModule {
     public void setExtended(ButterflyModule extended) {
         _logger.trace("{} -(extends)-> {}", this, extended);
         this._extended = extended;
+        wiringChanged();
     }
 
     public void addExtendedBy(ButterflyModule extendedBy) {
@@ -149,34 +190,92 @@ public class ButterflyModuleImpl implements ButterflyModule {
         if (!this._dependencies.containsKey(name)) {
             _logger.trace("{} -({})-> {}", new Object[] { this, name, module} );
             this._dependencies.put(name, module);
+            wiringChanged();
         }
     }
 
     public void setModules(Map<String,ButterflyModule> map) {
         this._modules = map;
+        wiringChanged();
     }
     
     @SuppressWarnings("unchecked")
     public void setScript(URL url, Script script) {
         _logger.trace("{} -(script)-> {}", this, url);
         this._scripts.put(url,script);
+        _scriptsVersion.incrementAndGet();
     }
 
     public void setScriptable(ButterflyScriptableObject scriptable) {
         _logger.trace("{} -(scriptable)-> {}", this, scriptable.getClassName());
         this._scriptables.add(scriptable);
+        this._definitions = null;
     }
     
     public void setTemplateEngine(VelocityEngine templateEngine) {
         _logger.trace("{} gets template engine", this);
         this._templateEngine = templateEngine;
     }
+    
+    public void setTemplateCache(ButterflyResourceCache templateCache) {
+        _logger.trace("{} gets template cache", this);
+        this._templateCache = templateCache;
+    }
+    
+    public void setSharedTemplateEngine(ButterflyVelocityEngine templateEngine) {
+        _logger.trace("{} gets shared template engine", this);
+        this._sharedTemplateEngine = templateEngine;
+    }
         
     public void setProperties(ExtendedProperties properties) {
         _logger.trace("{} gets loaded with properties", this);
         this._properties = properties;
     }
 
+    @SuppressWarnings("unchecked")
+    public void setModuleProperties(ExtendedProperties properties) {
+        _logger.trace("{} gets loaded with module properties", this);
+        this._moduleProperties = properties;
+        this._staticPattern = compileGlobs(properties.getList(STATIC));
+        String[] cacheControl = properties.getStringArray(CACHE_CONTROL);
+        this._cacheControl = (cacheControl.length > 0) ? StringUtils.join(cacheControl, ", ") : "no-cache";
+        this._mimeTypes = new HashMap<String,String>(DEFAULT_MIME_TYPES);
+        Iterator<String> i = properties.getKeys(MIME_TYPE);
+        while (i.hasNext()) {
+            String key = i.next();
+            this._mimeTypes.put(key.substring(MIME_TYPE.length() + 1), properties.getString(key));
+        }
+        Map<String,Bundle> bundles = new LinkedHashMap<String,Bundle>();
+        boolean minify = properties.getBoolean(BUNDLES_MINIFY, false);
+        i = properties.getKeys(BUNDLE + ".");
+        while (i.hasNext()) {
+            String key = i.next();
+            String name = key.substring(BUNDLE.length() + 1);
+            bundles.put(name, new Bundle(this, name, properties.getList(key), minify));
+        }
+        this._bundles = bundles;
+        
+        // macro libraries are named after the module, velocity would mix up the macros of same-named libraries otherwise
+        List<String> macroLibraries = new ArrayList<String>();
+        for (String library : (List<String>) properties.getList("templating.macros")) {
+            library = library.trim();
+            if (library.length() > 0) {
+                macroLibraries.add("[#" + _name + "#]/" + library);
+            }
+        }
+        this._macroLibraries = (macroLibraries.isEmpty()) ? null : Collections.unmodifiableList(macroLibraries);
+    }
+
+    public void setClassCache(ClassCache cache) {
+        _logger.trace("{} gets class cache", this);
+        this._classCache = cache;
+    }
+
+    public void setRenderCache(RenderCache cache) {
+        _logger.trace("{} gets render cache", this);
+        this._renderCache = cache;
+    }
+
     public void setMounter(ButterflyMounter mounter) {
         _logger.trace("{} gets the module mounter", this);
         this._mounter = mounter;
@@ -212,6 +311,10 @@ public class ButterflyModuleImpl implements ButterflyModule {
         return this._properties;
     }
     
+    public ExtendedProperties getModuleProperties() {
+        return this._moduleProperties;
+    }
+    
     public MountPoint getMountPoint() {
         return this._mountPoint;
     }
@@ -240,26 +343,327 @@ public class ButterflyModuleImpl implements ButterflyModule {
     	return this._scriptables;
     }
     
+    /*
+     * the module's own template engine if it was given one, the shared one otherwise
+     * (which gets created if it wasn't before)
+     */
     public VelocityEngine getTemplateEngine() {
+        if (this._templateEngine == null && this._sharedTemplateEngine != null) {
+            return this._sharedTemplateEngine.getEngine();
+        }
     	return this._templateEngine;
     }
+
+    /**
+     * Returns the cache of parsed templates (and its statistics), or null if
+     * the module doesn't do templating or didn't render any template yet.
+     */
+    public ButterflyResourceCache getTemplateCache() {
+        if (this._templateCache == null && this._sharedTemplateEngine != null) {
+            return this._sharedTemplateEngine.getCache();
+        }
+        return this._templateCache;
+    }
+    
+    /**
+     * Returns the given template of this module (or of the modules it extends), 
+     * parsing it if it wasn't already.
+     */
+    public Template getTemplate(String template, String encoding) throws Exception {
+        VelocityEngine engine = getTemplateEngine();
+        ButterflyModule previous = ButterflyResourceLoader.bind(this);
+        try {
+            return engine.getTemplate(template, (encoding == null) ? this.encoding : encoding);
+        } finally {
+            ButterflyResourceLoader.bind(previous);
+        }
+    }
+    
+    /**
+     * Returns the names of all the templates (.vt files) that this module can render,
+     * its own and those of the modules it extends.
+     */
+    public Set<String> findTemplates() {
+        Set<String> templates = new TreeSet<String>();
+        for (ButterflyModule m = this; m != null; m = m.getExtendedModule()) {
+            if (m instanceof ButterflyModuleImpl) {
+                templates.addAll(((ButterflyModuleImpl) m).findResources(".vt"));
+            }
+        }
+        return templates;
+    }
+    
+    /**
+     * Returns the names of the macro libraries that the templates of this module
+     * are rendered with, as velocity knows them.
+     */
+    public List<String> getMacroLibraries() {
+        return (_macroLibraries == null) ? Collections.<String>emptyList() : _macroLibraries;
+    }
+    
+    /**
+     * Renders the given template of this module (or of the modules it extends)
+     * with the given context, along with the macro libraries of the module.
+     */
+    public void mergeTemplate(String template, String encoding, VelocityContext velocity, Writer writer) throws Exception {
+        VelocityEngine engine = getTemplateEngine();
+        ButterflyModule previous = ButterflyResourceLoader.bind(this);
+        try {
+            // velocity adds every template pulled in thru #parse to the list, so each merge gets its own
+            List<String> macroLibraries = (_macroLibraries == null) ? null : new ArrayList<String>(_macroLibraries);
+            engine.getTemplate(template, encoding).merge(velocity, writer, macroLibraries);
+        } finally {
+            ButterflyResourceLoader.bind(previous);
+        }
+    }
     
     public ButterflyModule getModule(String name) {
-        _logger.trace("> getModule({}) [{}]", name, this._name);
+        Map<String,ButterflyModule> lookup = _lookup;
+        if (lookup != null) {
+            return lookup.get(name);
+        }
         ButterflyModule module = _dependencies.get(name);
         if (module == null && _extended != null) {
             module = _extended.getModule(name);
         }
-        if (module == null) {
+        if (module == null && _modules != null) {
             module = _modules.get(name);
         }
-        _logger.trace("< getModule({}) [{}] -> {}", new Object[] { name, this._name,  module });
         return module;
     }
+    
+    /*
+     * Once the modules are wired, everything getModule() can resolve is flattened
+     * into a single map: the dependencies of this module win over whatever the 
+     * modules it extends resolve, which in turn win over the modules by name.
+     * The map is dropped (and lookups walk the wiring again) as soon as the 
+     * wiring of this module or of any module it extends changes.
+     */
+    protected volatile Map<String,ButterflyModule> _lookup;
+    
+    public Map<String,ButterflyModule> flattenModules() {
+        Map<String,ButterflyModule> lookup = _lookup;
+        if (lookup == null) {
+            Map<String,ButterflyModule> map = new HashMap<String,ButterflyModule>();
+            if (_modules != null) {
+                map.putAll(_modules);
+            }
+            if (_extended instanceof ButterflyModuleImpl) {
+                map.putAll(((ButterflyModuleImpl) _extended).flattenModules());
+            } else if (_extended != null) {
+                return null; // can't tell what other implementations resolve
+            }
+            for (Map.Entry<String,ButterflyModule> e : _dependencies.entrySet()) {
+                if (e.getValue() != null) {
+                    map.put(e.getKey(), e.getValue());
+                }
+            }
+            lookup = Collections.unmodifiableMap(map);
+            _lookup = lookup;
+        }
+        return lookup;
+    }
+    
+    protected void wiringChanged() {
+        _lookup = null;
+        _wiringHash = 0;
+        _definitions = null;
+        for (ButterflyModule m : _extendedBy) {
+            if (m instanceof ButterflyModuleImpl) {
+                ((ButterflyModuleImpl) m).wiringChanged();
+            }
+        }
+    }
 
     protected Pattern super_pattern = Pattern.compile("^@@(.*)@@$");
     
+    /*
+     * Resources are resolved thru a per-module index that maps relative paths 
+     * to their URL across the "extends" chain. It's filled with the module's own 
+     * files at startup and with the outcome of every other lookup after that. When
+     * autoreloading, the module directories are watched and the index is rebuilt
+     * (for this module and for the modules that extend it) as soon as a file is
+     * added or removed. Misses are only indexed (up to a limit) when watching,
+     * as nothing else would notice the files that get added later.
+     */
+    protected final Map<String,Object> _resources = new ConcurrentHashMap<String,Object>();
+    protected final AtomicInteger _resourceMisses = new AtomicInteger();
+    protected ResourceWatcher _resourceWatcher;
+    protected RenderCache _renderCache;
+    protected ClassCache _classCache;
+    
+    private static final Object MISSING = new Object();
+    private static final int MAX_INDEXED_RESOURCES = 50000;
+    private static final int MAX_CACHED_MISSES = 10000;
+    private static final long RESOURCE_WATCHER_DELAY = 1000;
+
     public URL getResource(String resource) {
+        if (resource.length() == 0 || !isCanonical(resource)) {
+            return findResource(resource);
+        }
+        
+        String key = (resource.charAt(0) == '/') ? resource.substring(1) : resource;
+        Object o = _resources.get(key);
+        if (o == null) {
+            URL u = findResource(resource);
+            if (u != null) {
+                _resources.put(key, u);
+            } else if (_resourceWatcher != null && _resourceMisses.get() < MAX_CACHED_MISSES) {
+                if (_resources.putIfAbsent(key, MISSING) == null) {
+                    _resourceMisses.incrementAndGet();
+                }
+            }
+            return u;
+        }
+        return (o == MISSING) ? null : (URL) o;
+    }
+    
+    /*
+     * tell whether the given resource name can be used as an index key, 
+     * as opposed to names that have other spellings or point outside the module
+     */
+    protected static boolean isCanonical(String resource) {
+        return !resource.startsWith("file:/") && resource.indexOf("..") < 0 && resource.indexOf("./") < 0 
+            && resource.indexOf("//") < 0 && resource.indexOf('\\') < 0;
+    }
+    
+    /*
+     * index all the files and folders of this module
+     */
+    protected void indexResources() {
+        if (_path != null && _path.isDirectory()) {
+            int indexed = indexResources(_path, "", 0);
+            _logger.debug("Indexed {} resources for module {}", indexed, _name);
+        }
+    }
+    
+    private int indexResources(File dir, String prefix, int count) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                if (count >= MAX_INDEXED_RESOURCES) {
+                    break;
+                }
+                String key = prefix + f.getName();
+                try {
+                    _resources.put(key, f.toURI().toURL());
+                    count++;
+                } catch (MalformedURLException e) {
+                    _logger.error("Error", e);
+                }
+                if (f.isDirectory()) {
+                    count = indexResources(f, key + "/", count);
+                }
+            }
+        }
+        return count;
+    }
+    
+    /**
+     * Returns the paths of the files of this module that have the given extension
+     * (as in ".less"), leaving out those under MOD-INF.
+     */
+    public List<String> findResources(String extension) {
+        List<String> paths = new ArrayList<String>();
+        if (_path != null && _path.isDirectory()) {
+            findResources(_path, "", extension, paths);
+        }
+        return paths;
+    }
+    
+    private void findResources(File dir, String prefix, String extension, List<String> paths) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                String path = prefix + f.getName();
+                if (f.isDirectory()) {
+                    if (!f.getName().equals("MOD-INF")) {
+                        findResources(f, path + "/", extension, paths);
+                    }
+                } else if (path.endsWith(extension)) {
+                    paths.add(path);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Drops everything the module knows about its resources and those of the 
+     * modules it extends. This is called when files are added to or removed from 
+     * the module, and it propagates to the modules that extend this one.
+     */
+    public void resourcesChanged() {
+        _logger.debug("Resources of module {} have changed", _name);
+        _resources.clear();
+        _resourceMisses.set(0);
+        if (_renderCache != null) {
+            _renderCache.clear();
+        }
+        ButterflyResourceCache templateCache = getTemplateCache();
+        if (templateCache != null) {
+            templateCache.clear(this);
+        }
+        indexResources();
+        for (ButterflyModule m : _extendedBy) {
+            if (m instanceof ButterflyModuleImpl) {
+                ((ButterflyModuleImpl) m).resourcesChanged();
+            }
+        }
+    }
+    
+    /*
+     * This task polls the folders of the module and signals when an entry is 
+     * added or removed from any of them (which changes the folder's last 
+     * modification time). Changes to the content of files don't alter how 
+     * resources resolve so there's no need to look at the files themselves,
+     * except for those of the templates already parsed, which get dropped. 
+     */
+    protected class ResourceWatcher extends TimerTask {
+        
+        private Map<File,Long> lastModifieds = new HashMap<File,Long>();
+        
+        ResourceWatcher() {
+            scan(_path);
+        }
+        
+        private void scan(File dir) {
+            lastModifieds.put(dir, Long.valueOf(dir.lastModified()));
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File f : files) {
+                    if (f.isDirectory()) {
+                        scan(f);
+                    }
+                }
+            }
+        }
+        
+        public void run() {
+            try {
+                boolean changed = false;
+                for (Map.Entry<File,Long> e : lastModifieds.entrySet()) {
+                    if (e.getKey().lastModified() != e.getValue().longValue()) {
+                        changed = true;
+                        break;
+                    }
+                }
+                if (changed) {
+                    lastModifieds.clear();
+                    scan(_path);
+                    resourcesChanged();
+                } else if (getTemplateCache() != null) {
+                    getTemplateCache().invalidateModified(ButterflyModuleImpl.this);
+                }
+            } catch (Exception e) {
+                _logger.error("Error watching resources of module " + _name, e);
+            }
+        }
+    }
+    
+    /*
+     * resolve the given resource without going thru the index
+     */
+    protected URL findResource(String resource) {
         _logger.trace("> getResource({}->{},{})", new Object[] { _name, _extended, resource });
         URL u = null;
 
@@ -342,11 +746,74 @@ public class ButterflyModuleImpl implements ButterflyModule {
     
     // ------------------------------------------------------------------------------------------------
     
+    /**
+     * @deprecated images are served by their file extension like every other
+     * static resource (see MIME_TYPE), this pattern isn't used anymore
+     */
+    @Deprecated
     protected Pattern images_pattern = Pattern.compile("^/?.*\\.(jpg|gif|png)$");
-    protected Pattern mod_inf_pattern = Pattern.compile("^.*/MOD-INF/.*$");
+    protected Pattern mod_inf_pattern = Pattern.compile("^(.*/)?MOD-INF/.*$");
 
     protected String encoding = "UTF-8";
     
+    /*
+     * the module property that lists the glob patterns (relative to the module)
+     * of the resources that are served as they are, without asking the controller
+     */
+    public static final String STATIC = "static";
+
+    /*
+     * the prefix of the module properties that map a file extension to its mime type,
+     * as in "mimetype.woff = font/woff"
+     */
+    public static final String MIME_TYPE = "mimetype";
+    
+    /*
+     * the module property that holds the Cache-Control header sent along with its resources
+     */
+    public static final String CACHE_CONTROL = "cache.control";
+    
+    protected String _cacheControl = "no-cache";
+    
+    /*
+     * the prefix of the module properties that declare bundles, as in 
+     * "bundle.main.js = [#jquery#]/jquery.js, scripts/main.js"
+     */
+    public static final String BUNDLE = "bundle";
+    
+    /*
+     * the module property that tells whether bundles are minified
+     */
+    public static final String BUNDLES_MINIFY = "bundles.minify";
+    
+    // bundles are served under a URL that changes with their content, so they never go stale
+    protected static final String IMMUTABLE = "public, max-age=31536000, immutable";
+    
+    protected Map<String,Bundle> _bundles = Collections.emptyMap();
+    
+    // the .less stylesheets compiled so far, by path
+    protected final Map<String,LessStylesheet> _stylesheets = new ConcurrentHashMap<String,LessStylesheet>();
+    
+    // resources smaller than this are never sent compressed, a negative value disables compression
+    protected int _compressionThreshold = 1024;
+    
+    protected static final Map<String,String> DEFAULT_MIME_TYPES = new HashMap<String,String>();
+    
+    static {
+        DEFAULT_MIME_TYPES.put("js", "text/javascript");
+        DEFAULT_MIME_TYPES.put("jpg", "image/jpg");
+        DEFAULT_MIME_TYPES.put("gif", "image/gif");
+        DEFAULT_MIME_TYPES.put("png", "image/png");
+        DEFAULT_MIME_TYPES.put("css", "text/css");
+        DEFAULT_MIME_TYPES.put("less", "text/css");
+        DEFAULT_MIME_TYPES.put("html", "text/html");
+        DEFAULT_MIME_TYPES.put("xml", "application/xml");
+        DEFAULT_MIME_TYPES.put("svg", "image/svg+xml");
+    }
+    
+    protected Map<String,String> _mimeTypes = DEFAULT_MIME_TYPES;
+    protected Pattern _staticPattern;
+    
     /*
      * This class encapsulates the 'context action' that Rhino executes
      * when a request comes.
@@ -372,7 +839,9 @@ public class ButterflyModuleImpl implements ButterflyModule {
                 throw new RuntimeException ("Error retrieving scope", e);
             }
 
-            initScope(context,scope);
+            if (!_scopeShared) {
+                initScope(context,scope);
+            }
 
             return process(context, scope);
         }
@@ -390,7 +859,7 @@ public class ButterflyModuleImpl implements ButterflyModule {
          */
         private Object process(Context context, Scriptable scope) {
             _scope = scope; // save this for the didRespond() method above;
-            Function function = getFunction("process", scope, context);
+            Function function = getProcessFunction(scope);
             Object[] args = new Object[] {
                 Context.javaToJS(_path, scope),
                 Context.javaToJS(_request, scope),
@@ -398,23 +867,37 @@ public class ButterflyModuleImpl implements ButterflyModule {
             };
             return function.call(context, scope, scope, args);
         }
-        
-        /*
-         * obtain a javascript function from the given scope
-         */
-        private Function getFunction(String name, Scriptable scope, Context ctx) {
-            Object fun;
-            try {
-                fun = ctx.compileString(name, null, 1, null).exec(ctx, scope);
-            } catch (EcmaError ee) {
-                throw new RuntimeException ("Function '" + name + "()' not found.");
-            }
-            
-            if (!(fun instanceof Function)) {
-                throw new RuntimeException("'" + name + "' is not a function");
-            } else {
-                return (Function) fun;
+    }
+    
+    /*
+     * obtain the controller "process()" function for the given scope.
+     * When the scope sits on top of the shared scope, the function
+     * is resolved only once and reused until the scripts change.
+     */
+    protected Function getProcessFunction(Scriptable scope) {
+        SharedScope shared = _sharedScope;
+        if (shared != null && scope.getPrototype() == shared.scope) {
+            Function function = shared.process;
+            if (function == null) {
+                function = getFunction("process", shared.scope);
+                shared.process = function;
             }
+            return function;
+        }
+        return getFunction("process", scope);
+    }
+    
+    /*
+     * obtain a javascript function from the given scope
+     */
+    protected static Function getFunction(String name, Scriptable scope) {
+        Object fun = ScriptableObject.getProperty(scope, name);
+        if (fun == Scriptable.NOT_FOUND) {
+            throw new RuntimeException ("Function '" + name + "()' not found.");
+        } else if (!(fun instanceof Function)) {
+            throw new RuntimeException("'" + name + "' is not a function");
+        } else {
+            return (Function) fun;
         }
     }
     
@@ -424,52 +907,164 @@ public class ButterflyModuleImpl implements ButterflyModule {
      */
     public boolean process(String path, HttpServletRequest request, HttpServletResponse response) throws Exception {
 
-        if (processScript(path, request, response)) {
+        if (mod_inf_pattern.matcher(path).matches()) {
+            if (processScript(path, request, response)) {
+                return true;
+            }
+            response.sendError(HttpServletResponse.SC_FORBIDDEN);
             return true;
         }
         
-        Matcher m = null;
+        if (path.startsWith(Bundle.PATH) && !_bundles.isEmpty() && sendBundle(request, response, path)) {
+            return true;
+        }
+        
+        if (_staticPattern != null && _staticPattern.matcher(path).matches()) {
+            return sendStatic(request, response, path);
+        }
 
+        if (processScript(path, request, response)) {
+            return true;
+        }
+        
+        return sendStatic(request, response, path);
+    }
+    
+    /*
+     * send the given resource of this module as it is, picking its mime type
+     * from its file extension
+     */
+    protected boolean sendStatic(HttpServletRequest request, HttpServletResponse response, String path) throws Exception {
         if (path.equals("") || path.endsWith("/")) {
             return sendText(request, response, path + "index.html", encoding, "text/html",false);
         }
         
-        if (path.endsWith(".js")) {
-            return sendText(request, response, path, encoding, "text/javascript",false);
+        int dot = path.lastIndexOf('.');
+        if (dot < 0 || dot < path.lastIndexOf('/')) {
+            return false;
         }
-
-        m = images_pattern.matcher(path);
-        if (m.matches()) {
-            return sendBinary(request, response, path, "image/" + m.group(1));
+        
+        String extension = path.substring(dot + 1);
+        String mimeType = _mimeTypes.get(extension);
+        if (mimeType == null) {
+            return false;
+        } else if (extension.equals("less")) {
+            return sendLessen(request, response, path, encoding, mimeType, false);
+        } else if (isText(mimeType)) {
+            return sendText(request, response, path, encoding, mimeType, false);
+        } else {
+            return sendBinary(request, response, path, mimeType);
         }
-
-        if (path.endsWith(".css")) {
-            return sendText(request, response, path, encoding, "text/css",false);
+    }
+    
+    /**
+     * Returns the path of the current version of the given bundle as served
+     * for the given request, relative to the module, or null if the module
+     * declares no such bundle.
+     */
+    public String getBundle(HttpServletRequest request, String name) throws IOException {
+        Bundle bundle = _bundles.get(name);
+        return (bundle == null) ? null : bundle.getPath(getContextPath(request, false));
+    }
+    
+    /*
+     * send the bundle that the given path names, as in "bundles/main.0a1b2c3d4e5f.js". 
+     * Paths that name an older version get the current one, but without being 
+     * allowed to cache it forever.
+     */
+    protected boolean sendBundle(HttpServletRequest request, HttpServletResponse response, String path) throws Exception {
+        String file = path.substring(Bundle.PATH.length());
+        int dot = file.lastIndexOf('.');
+        int hashDot = (dot > 0) ? file.lastIndexOf('.', dot - 1) : -1;
+        if (hashDot < 0) {
+            return false;
         }
-
-        if (path.endsWith(".less")) {
-            return sendLessen(request, response, path, encoding, "text/css",false);
+        Bundle bundle = _bundles.get(file.substring(0, hashDot) + file.substring(dot));
+        if (bundle == null) {
+            return false;
         }
-
-        if (path.endsWith(".html")) {
-            return sendText(request, response, path, encoding, "text/html",false);
+        
+        Bundle.Version version = bundle.getVersion();
+        String baseURL = getContextPath(request, false);
+        String hash = version.getHash(baseURL);
+        String etag = "\"" + hash + "\"";
+        String mimeType = _mimeTypes.get(bundle.getExtension());
+        if (mimeType == null) {
+            mimeType = "text/plain";
         }
-
-        if (path.endsWith(".xml")) {
-            return sendText(request, response, path, encoding, "application/xml",false);
+        
+        byte[] content = version.getContent(baseURL);
+        boolean gzip = false;
+        if (_compressionThreshold >= 0 && content.length >= _compressionThreshold) {
+            response.setHeader("Vary", "Accept-Encoding");
+            if (acceptsGzip(request)) {
+                gzip = true;
+                etag = "\"" + hash + "-gzip\"";
+            }
         }
-
-        if (path.endsWith(".svg"))  {
-            return sendText(request, response, path, encoding, "image/svg+xml",false);
+        
+        response.setHeader("ETag", etag);
+        if (version.lastModified > 0) {
+            response.setDateHeader("Last-Modified", version.lastModified);
         }
-                
-        m = mod_inf_pattern.matcher(path);
-        if (m.matches()) {
-            response.sendError(HttpServletResponse.SC_FORBIDDEN);
+        response.setHeader("Cache-Control", hash.equals(file.substring(hashDot + 1, dot)) ? IMMUTABLE : _cacheControl);
+        if (isNotModified(request, etag, version.lastModified)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
             return true;
         }
         
-        return false;
+        if (gzip) {
+            content = version.getCompressed(baseURL);
+            response.setHeader("Content-Encoding", "gzip");
+        }
+        response.setHeader("Content-Type", mimeType + ";charset=" + encoding);
+        response.setCharacterEncoding(encoding);
+        response.setContentLength(content.length);
+        OutputStream output = response.getOutputStream();
+        try {
+            output.write(content);
+        } finally {
+            output.close();
+        }
+        return true;
+    }
+    
+    protected static boolean isText(String mimeType) {
+        return mimeType.startsWith("text/") || mimeType.endsWith("xml") || mimeType.endsWith("javascript") || mimeType.endsWith("json");
+    }
+    
+    /*
+     * turn a list of glob patterns (where '*' doesn't cross '/' but '**' does) 
+     * into a single regular expression, or null if there are none
+     */
+    protected static Pattern compileGlobs(List<String> globs) {
+        StringBuffer b = new StringBuffer();
+        for (String glob : globs) {
+            glob = glob.trim();
+            if (glob.length() == 0) continue;
+            if (glob.charAt(0) == '/') glob = glob.substring(1);
+            if (b.length() > 0) b.append('|');
+            b.append("(?:");
+            for (int i = 0; i < glob.length(); i++) {
+                char c = glob.charAt(i);
+                if (c == '*') {
+                    if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                        b.append(".*");
+                        i++;
+                    } else {
+                        b.append("[^/]*");
+                    }
+                } else if (c == '?') {
+                    b.append("[^/]");
+                } else if ("\\.[]{}()+-^$|".indexOf(c) >= 0) {
+                    b.append('\\').append(c);
+                } else {
+                    b.append(c);
+                }
+            }
+            b.append(')');
+        }
+        return (b.length() > 0) ? Pattern.compile("/?(?:" + b + ")") : null;
     }
     
     // ------------------------------------------------------------------------------------------------
@@ -516,11 +1111,15 @@ public class ButterflyModuleImpl implements ButterflyModule {
         return send(request, response, resource, true, encoding, mimeType, prologue, epilogue, absolute);
     }
         
-    public boolean sendTextFromTemplate(HttpServletRequest request, HttpServletResponse response, VelocityContext velocity, String template, String encoding, String mimeType, boolean absolute) throws Exception {
+    public boolean sendTextFromTemplate(final HttpServletRequest request, HttpServletResponse response, final VelocityContext velocity, final String template, final String encoding, String mimeType, final boolean absolute) throws Exception {
         _logger.trace("> template {} [{}|{}]", new String[] { template, encoding, mimeType });
         try {
             response.setContentType(mimeType);
-            _templateEngine.mergeTemplate(template, encoding, velocity, getFilteringWriter(request, response, absolute));
+            sendGenerated(request, response, new TextGenerator() {
+                public void write(HttpServletResponse response) throws Exception {
+                    mergeTemplate(template, encoding, velocity, getFilteringWriter(request, response, absolute));
+                }
+            });
         } catch (ResourceNotFoundException e) {
             response.sendError(HttpServletResponse.SC_NOT_FOUND);
         }
@@ -528,17 +1127,86 @@ public class ButterflyModuleImpl implements ButterflyModule {
         return true; 
     }
     
-    public boolean sendLessen(HttpServletRequest request, HttpServletResponse response, String path, String encoding, String mimeType, boolean absolute) throws Exception {
+    public boolean sendLessen(final HttpServletRequest request, HttpServletResponse response, String path, String encoding, String mimeType, final boolean absolute) throws Exception {
+        final LessStylesheet stylesheet = getStylesheet(path);
+        if (stylesheet == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return true;
+        }
+        
+        response.setContentType("text/css");
+        sendGenerated(request, response, new TextGenerator() {
+            public void write(HttpServletResponse response) throws Exception {
+                if (_customFiltering) {
+                    PrintWriter writer = getFilteringWriter(request, response, absolute);
+                    writer.write(stylesheet.css);
+                    writer.close();
+                } else {
+                    PrintWriter writer = response.getWriter();
+                    stylesheet.template.write(writer, getContextPath(request, absolute));
+                    writer.close();
+                }
+            }
+        });
+        return true;
+    }
+    
+    /**
+     * Writes generated text thru the writer of the response it's given.
+     */
+    protected interface TextGenerator {
+        void write(HttpServletResponse response) throws Exception;
+    }
+    
+    /*
+     * send the text of the given generator, gzipped if the client takes it:
+     * since the length isn't known in advance, the text is then generated into
+     * a buffer first and only compressed if it turns out long enough
+     */
+    protected void sendGenerated(HttpServletRequest request, HttpServletResponse response, TextGenerator generator) throws Exception {
+        if (_compressionThreshold < 0) {
+            generator.write(response);
+            return;
+        }
+        response.setHeader("Vary", "Accept-Encoding");
+        if (!acceptsGzip(request)) {
+            generator.write(response);
+            return;
+        }
+        
+        String encoding = response.getCharacterEncoding();
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        PrintWriter writer = new PrintWriter(new OutputStreamWriter(buffer, (encoding != null) ? encoding : "ISO-8859-1"));
+        generator.write(capture(response, writer));
+        writer.close();
+        byte[] content = buffer.toByteArray();
+        if (content.length >= _compressionThreshold) {
+            content = gzip(content);
+            response.setHeader("Content-Encoding", "gzip");
+        }
+        writeContent(response, content);
+    }
+    
+    /**
+     * Returns the given .less stylesheet of this module compiled into CSS, compiling
+     * it only if it wasn't before or if any of the files it imports changed since. 
+     * Returns null if there is no such stylesheet.
+     */
+    public LessStylesheet getStylesheet(String path) throws IOException {
         URL url = getResource(path);
+        if (url == null) {
+            return null;
+        }
         
         Map<String, String> variables = new HashMap<String, String>();
         variables.put("module", _name);
         
-        Tokenizer tokenizer = Utilities.openLess(url, variables);
-        tokenizer = new CondensingTokenizer(tokenizer, false);
-        tokenizer = new IndentingTokenizer(tokenizer);
-        
-        return sendLessenTokenStream(request, response, tokenizer, encoding, "text/css",false);
+        LessStylesheet stylesheet = _stylesheets.get(path);
+        if (stylesheet == null || !stylesheet.isCurrent(this, url, variables)) {
+            stylesheet = LessStylesheet.compile(this, url, variables);
+            _stylesheets.put(path, stylesheet);
+        }
+        return stylesheet;
     }
     
     public boolean sendLessenTokenStream(HttpServletRequest request, HttpServletResponse response, Tokenizer tokenizer, String encoding, String mimeType, boolean absolute) throws Exception {
@@ -562,6 +1230,20 @@ public class ButterflyModuleImpl implements ButterflyModule {
         return true; 
     }
 
+    /**
+     * Returns the writer that text can be streamed to instead of being sent as a
+     * string, with the response set up the way sendString() sets it up, or null if
+     * sendString() is overridden and the text must be sent thru it.
+     */
+    public PrintWriter getStringWriter(HttpServletResponse response, String encoding, String mimeType) throws Exception {
+        if (_customStrings) {
+            return null;
+        }
+        response.setContentType(mimeType);
+        response.setCharacterEncoding(encoding);
+        return response.getWriter();
+    }
+
     public boolean sendError(HttpServletRequest request, HttpServletResponse response, int code, String str) throws Exception {
         _logger.trace("> error: '{}' '{}'", code, str);
         response.sendError(code, str);
@@ -628,23 +1310,107 @@ public class ButterflyModuleImpl implements ButterflyModule {
 
     protected void scriptInit() throws Exception {
         Context context = ContextFactory.getGlobal().enterContext();
-        Scriptable scope = new ButterflyScope(this, context);
-        
-        initScope(context,scope);
-        
-        String functionName = "init";
         try {
-            Object fun = context.compileString(functionName, null, 1, null).exec(context, scope);
-            if (fun != null && fun instanceof Function) {
-                try {
-                    ((Function) fun).call(context, scope, scope, new Object[] {});
-                } catch (EcmaError ee) {
-                    _logger.error("Error initializing module " + getName() + " by script function init()", ee);
+            if (_scopeShared) {
+                getSharedScope(context);
+            } else {
+                ButterflyScope scope = new ButterflyScope(this, context, _classCache, getDefinitions(context));
+                initScope(context,scope);
+                callInit(context, scope);
+            }
+        } finally {
+            Context.exit();
+        }
+    }
+    
+    /*
+     * invoke the controller "init()" function, if there is one
+     */
+    protected void callInit(Context context, Scriptable scope) {
+        Object fun = ScriptableObject.getProperty(scope, "init");
+        if (fun instanceof Function) {
+            try {
+                ((Function) fun).call(context, scope, scope, new Object[] {});
+            } catch (EcmaError ee) {
+                _logger.error("Error initializing module " + getName() + " by script function init()", ee);
+            }
+        }
+    }
+    
+    /*
+     * This class holds the sealed top-level scope that is shared between
+     * all the requests handled by this module, along with the version of
+     * the scripts that were executed to build it.
+     */
+    protected static class SharedScope {
+        final ButterflyScope scope;
+        final long version;
+        volatile Function process;
+        
+        SharedScope(ButterflyScope scope, long version) {
+            this.scope = scope;
+            this.version = version;
+        }
+    }
+    
+    /*
+     * Obtain the shared top-level scope of this module, (re)building it
+     * (and running the controller "init()" function in it) if any of the 
+     * scripts that it was built from has changed.
+     */
+    protected Scriptable getSharedScope(Context context) throws Exception {
+        SharedScope shared = _sharedScope;
+        if (shared == null || shared.version != getScriptsVersion()) {
+            synchronized (this) {
+                shared = _sharedScope;
+                long version = getScriptsVersion();
+                if (shared == null || shared.version != version) {
+                    _logger.debug("Building shared scope for module {}", _name);
+                    ButterflyScope scope = new ButterflyScope(this, context, _classCache);
+                    initScope(context, scope);
+                    callInit(context, scope);
+                    scope.sealObject();
+                    shared = new SharedScope(scope, version);
+                    _sharedScope = shared;
+                }
+            }
+        }
+        return shared.scope;
+    }
+    
+    /*
+     * the version of the scripts that a scope of this module runs: its own and
+     * those of its dependencies (versions only grow, so their sum does as well)
+     */
+    protected long getScriptsVersion() {
+        long version = _scriptsVersion.get();
+        for (ButterflyModule m : _dependencies.values()) {
+            if (m instanceof ButterflyModuleImpl) {
+                version += ((ButterflyModuleImpl) m).getScriptsVersion();
+            }
+        }
+        return version;
+    }
+    
+    /*
+     * The scriptable classes are defined once and only instantiated for every 
+     * new scope. The definitions are dropped when the scriptables or the
+     * wiring of the module change.
+     */
+    protected volatile ButterflyScope.Definitions _definitions;
+    
+    protected ButterflyScope.Definitions getDefinitions(Context context) throws Exception {
+        ButterflyScope.Definitions definitions = _definitions;
+        if (definitions == null) {
+            synchronized (this) {
+                definitions = _definitions;
+                if (definitions == null) {
+                    definitions = ButterflyScope.define(this, context, _classCache);
+                    _definitions = definitions;
                 }
             }
-        } catch (EcmaError ee) {
-            // ignore
         }
+        return definitions;
     }
     
     protected boolean processScript(String path, HttpServletRequest request, HttpServletResponse response) throws Exception {
@@ -661,69 +1427,500 @@ public class ButterflyModuleImpl implements ButterflyModule {
     }
 
     protected ButterflyScope getScope(Context context, HttpServletRequest request) throws Exception {
-        return new ButterflyScope(this, context);
+        if (_scopeShared) {
+            return new ButterflyScope(this, context, getSharedScope(context));
+        }
+        return new ButterflyScope(this, context, _classCache, getDefinitions(context));
+    }
+    
+    /*
+     * What we know about a resource to answer conditional requests without opening it:
+     * its last modification time and a hash of its content (from which ETags are made).
+     */
+    protected static class ResourceMetadata {
+        final long lastModified;
+        final long length;
+        final String hash;
+        volatile File gzipped;
+        volatile long checked;
+        
+        ResourceMetadata(long lastModified, long length, String hash) {
+            this.lastModified = lastModified;
+            this.length = length;
+            this.hash = hash;
+            this.checked = System.currentTimeMillis();
+        }
+        
+        /*
+         * the ETag of the resource as sent, the variant identifies how the
+         * content was transformed on its way out (if at all)
+         */
+        String getETag(String variant) {
+            return "\"" + ((variant == null) ? hash : hash + "-" + variant) + "\"";
+        }
+    }
+    
+    protected final Map<String,ResourceMetadata> _metadata = new ConcurrentHashMap<String,ResourceMetadata>();
+    
+    // how often the last modification time of a resource is checked to see if its hash is still valid
+    private static final long METADATA_CHECK_INTERVAL = 1000;
+    
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    
+    protected ResourceMetadata getMetadata(URL resource) {
+        String key = resource.toString();
+        ResourceMetadata metadata = _metadata.get(key);
+        long now = System.currentTimeMillis();
+        if (metadata != null && now - metadata.checked < METADATA_CHECK_INTERVAL) {
+            return metadata;
+        }
+        
+        try {
+            long lastModified;
+            long length;
+            File gzipped = null;
+            if ("file".equals(resource.getProtocol())) {
+                File f = new File(resource.toURI());
+                if (!f.isFile()) {
+                    _metadata.remove(key);
+                    return null;
+                }
+                lastModified = f.lastModified();
+                length = f.length();
+                gzipped = getGzipped(f);
+            } else if (metadata != null) {
+                // resources that don't come from the file system (jars, mostly) don't change
+                metadata.checked = now;
+                return metadata;
+            } else {
+                URLConnection c = resource.openConnection();
+                lastModified = c.getLastModified();
+                length = c.getContentLengthLong();
+                c.getInputStream().close();
+            }
+            
+            if (metadata != null && metadata.lastModified == lastModified && metadata.length == length) {
+                metadata.gzipped = gzipped;
+                metadata.checked = now;
+                return metadata;
+            }
+            
+            metadata = new ResourceMetadata(lastModified, length, hash(resource));
+            metadata.gzipped = gzipped;
+            _metadata.put(key, metadata);
+            return metadata;
+        } catch (Exception e) {
+            _logger.warn("Could not obtain metadata for " + resource, e);
+            return null;
+        }
+    }
+    
+    /*
+     * the precompressed sibling of the given file, unless there is none or it's
+     * older than the file itself (and therefore likely to be out of date)
+     */
+    protected static File getGzipped(File file) {
+        File gzipped = new File(file.getPath() + ".gz");
+        return (gzipped.isFile() && gzipped.lastModified() >= file.lastModified()) ? gzipped : null;
+    }
+    
+    protected static String hash(URL resource) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-1");
+        InputStream input = resource.openStream();
+        try {
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = input.read(buffer)) > 0) {
+                digest.update(buffer, 0, n);
+            }
+        } finally {
+            input.close();
+        }
+        return hex(digest.digest());
+    }
+    
+    protected static String hash(String text) throws Exception {
+        return hex(MessageDigest.getInstance("SHA-1").digest(text.getBytes("UTF-8")));
+    }
+    
+    private static String hex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[2 * i] = HEX[(bytes[i] >> 4) & 0xf];
+            chars[2 * i + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+    
+    /*
+     * text resources are rewritten and wrapped on their way out, so what they
+     * are sent as depends on all of this besides their content. The values are
+     * spelled out (each one prefixed with its length) rather than hashed, since 
+     * the context path comes from a request header: no two different renderings 
+     * can have the same variant, however the header is crafted.
+     */
+    protected String getVariant(HttpServletRequest request, boolean filtering, String encoding, String prologue, String epilogue, boolean absolute) {
+        StringBuilder b = new StringBuilder();
+        appendVariant(b, encoding);
+        if (filtering) {
+            appendVariant(b, getContextPath(request, absolute));
+            appendVariant(b, String.valueOf(absolute));
+            appendVariant(b, Integer.toHexString(getWiringHash()));
+        }
+        appendVariant(b, prologue);
+        appendVariant(b, epilogue);
+        return b.toString();
+    }
+    
+    private static void appendVariant(StringBuilder b, String value) {
+        if (value == null) {
+            b.append('-');
+        } else {
+            b.append(value.length()).append(':').append(value);
+        }
+    }
+    
+    private volatile int _wiringHash;
+    
+    /*
+     * a hash of where every module name this module resolves is mounted, since
+     * that's what links are rewritten to (dropped along with the lookup)
+     */
+    protected int getWiringHash() {
+        int h = _wiringHash;
+        if (h == 0) {
+            Set<String> names = new TreeSet<String>();
+            Map<String,ButterflyModule> lookup = flattenModules();
+            if (lookup != null) {
+                names.addAll(lookup.keySet());
+            } else {
+                if (_modules != null) {
+                    names.addAll(_modules.keySet());
+                }
+                names.addAll(_dependencies.keySet());
+            }
+            Map<String,String> mounts = new TreeMap<String,String>();
+            for (String name : names) {
+                ButterflyModule module = getModule(name);
+                mounts.put(name, (module == null) ? null : String.valueOf(module.getMountPoint()));
+            }
+            h = mounts.hashCode() | 1;
+            _wiringHash = h;
+        }
+        return h;
+    }
+    
+    protected static boolean isNotModified(HttpServletRequest request, String etag, long lastModified) {
+        String method = request.getMethod();
+        if (method != null && !"GET".equals(method) && !"HEAD".equals(method)) {
+            return false;
+        }
+        
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                if (tag.startsWith("W/")) {
+                    tag = tag.substring(2);
+                }
+                if (tag.equals("*") || tag.equals(etag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        
+        long ifModifiedSince;
+        try {
+            ifModifiedSince = request.getDateHeader("If-Modified-Since");
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        return ifModifiedSince > 0 && lastModified > 0 && lastModified / 1000 <= ifModifiedSince / 1000;
+    }
+    
+    /*
+     * tell whether the client takes gzipped content, that is whether it lists
+     * gzip (or anything at all) in its Accept-Encoding without a zero quality
+     */
+    protected static boolean acceptsGzip(HttpServletRequest request) {
+        String accept = request.getHeader("Accept-Encoding");
+        if (accept == null) {
+            return false;
+        }
+        for (String coding : accept.split(",")) {
+            String q = null;
+            int semicolon = coding.indexOf(';');
+            if (semicolon >= 0) {
+                q = coding.substring(semicolon + 1).trim();
+                coding = coding.substring(0, semicolon);
+            }
+            coding = coding.trim();
+            if (coding.equalsIgnoreCase("gzip") || coding.equals("*")) {
+                if (q == null || !q.startsWith("q=")) {
+                    return true;
+                }
+                try {
+                    return Float.parseFloat(q.substring(2).trim()) > 0;
+                } catch (NumberFormatException e) {
+                    return false;
+                }
+            }
+        }
+        return false;
+    }
+    
+    protected static byte[] gzip(byte[] content) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(content.length / 4 + 64);
+        GZIPOutputStream output = new GZIPOutputStream(buffer);
+        try {
+            output.write(content);
+        } finally {
+            output.close();
+        }
+        return buffer.toByteArray();
+    }
+    
+    /*
+     * the compressed variant of a rendered resource: its precompressed sibling
+     * if the rendering left the file untouched, the content gzipped otherwise
+     */
+    protected byte[] getCompressed(String key, RenderCache.Entry entry, URL resource, ResourceMetadata metadata) throws Exception {
+        byte[] compressed = entry.getCompressed();
+        if (compressed == null) {
+            File gzipped = metadata.gzipped;
+            if (gzipped != null && entry.getContent().length == metadata.length &&
+                    Arrays.equals(entry.getContent(), FileUtils.readFileToByteArray(new File(resource.toURI())))) {
+                compressed = FileUtils.readFileToByteArray(gzipped);
+            } else {
+                compressed = gzip(entry.getContent());
+            }
+            _renderCache.setCompressed(key, entry, compressed);
+        }
+        return compressed;
+    }
+    
+    /*
+     * render the given text resource the way send() would, but into a byte array
+     */
+    protected byte[] render(HttpServletRequest request, HttpServletResponse response, URL resource, ResourceMetadata metadata, boolean filtering, String encoding, String prologue, String epilogue, boolean absolute) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        PrintWriter writer = new PrintWriter(new OutputStreamWriter(buffer, encoding));
+        writeText(request, capture(response, writer), resource, metadata, filtering, encoding, prologue, epilogue, absolute);
+        return buffer.toByteArray();
+    }
+    
+    /*
+     * the given response, with its text going to the given writer instead
+     */
+    protected static HttpServletResponse capture(HttpServletResponse response, final PrintWriter writer) {
+        return new HttpServletResponseWrapper(response) {
+            public PrintWriter getWriter() {
+                return writer;
+            }
+        };
+    }
+    
+    protected static void writeContent(HttpServletResponse response, byte[] content) throws IOException {
+        response.setContentLength(content.length);
+        OutputStream output = response.getOutputStream();
+        try {
+            output.write(content);
+        } finally {
+            output.close();
+        }
+    }
+    
+    // whether a subclass filters text its own way, in which case it all goes thru its writer
+    private final boolean _customFiltering = overrides("getFilteringWriter", HttpServletRequest.class, HttpServletResponse.class, boolean.class);
+
+    // whether a subclass sends strings its own way, in which case streamed text goes thru it as well
+    private final boolean _customStrings = overrides("sendString", HttpServletRequest.class, HttpServletResponse.class, String.class, String.class, String.class);
+    
+    private boolean overrides(String name, Class<?>... parameters) {
+        try {
+            return getClass().getMethod(name, parameters).getDeclaringClass() != ButterflyModuleImpl.class;
+        } catch (NoSuchMethodException e) {
+            return true;
+        }
+    }
+    
+    /*
+     * write the given text resource thru the response writer, with its links
+     * resolved if filtering. Links are resolved once per version of the resource
+     * and wiring of the modules, not every time the resource is sent, unless
+     * getFilteringWriter() is overridden.
+     */
+    protected void writeText(HttpServletRequest request, HttpServletResponse response, URL resource, ResourceMetadata metadata, boolean filtering, String encoding, String prologue, String epilogue, boolean absolute) throws IOException {
+        if (filtering && !_customFiltering && metadata != null && metadata.length >= 0 && metadata.length <= MAX_LINK_TEMPLATE_SIZE) {
+            LinkTemplate template = getLinkTemplate(resource, metadata, encoding, prologue, epilogue);
+            PrintWriter output = response.getWriter();
+            try {
+                template.write(output, getContextPath(request, absolute));
+            } finally {
+                output.close();
+            }
+            return;
+        }
+        
+        Reader input = new BufferedReader(new InputStreamReader(resource.openStream(), encoding));
+        Writer output = (filtering) ? getFilteringWriter(request, response, absolute) : response.getWriter();
+        try {
+            if (prologue != null) {
+                output.write(prologue);
+            }
+            
+            IOUtils.copy(input, output);
+            
+            if (epilogue != null) {
+                output.write(epilogue);
+            }
+        } finally {
+            input.close();
+            output.close();
+        }
+    }
+    
+    // compiled link templates, keyed by what they were compiled from
+    protected final Map<String,LinkTemplate> _linkTemplates = new ConcurrentHashMap<String,LinkTemplate>();
+    
+    // resources bigger than this are streamed thru a link rewriter instead of being compiled
+    private static final long MAX_LINK_TEMPLATE_SIZE = 1024 * 1024;
+    
+    // the cache of link templates is dropped as a whole when it gets this big
+    private static final int MAX_LINK_TEMPLATES = 1000;
+    
+    protected LinkTemplate getLinkTemplate(URL resource, ResourceMetadata metadata, String encoding, String prologue, String epilogue) throws IOException {
+        StringBuilder b = new StringBuilder(metadata.hash).append(' ');
+        appendVariant(b, encoding);
+        appendVariant(b, Integer.toHexString(getWiringHash()));
+        appendVariant(b, prologue);
+        appendVariant(b, epilogue);
+        String key = b.toString();
+        
+        LinkTemplate template = _linkTemplates.get(key);
+        if (template == null) {
+            StringBuilder text = new StringBuilder((int) metadata.length + 256);
+            if (prologue != null) {
+                text.append(prologue);
+            }
+            text.append(IOUtils.toString(resource, encoding));
+            if (epilogue != null) {
+                text.append(epilogue);
+            }
+            template = LinkTemplate.compile(this, text.toString());
+            if (_linkTemplates.size() >= MAX_LINK_TEMPLATES) {
+                _linkTemplates.clear();
+            }
+            _linkTemplates.put(key, template);
+        }
+        return template;
     }
     
     protected boolean send(HttpServletRequest request, HttpServletResponse response, URL resource, boolean filtering, String encoding, String mimeType, String prologue, String epilogue, boolean absolute) throws Exception {
         _logger.trace("> send {}", resource);
 
         if (resource != null) {
-            URLConnection urlConnection = resource.openConnection();
+            String etag = null;
+            long lastModified = 0;
+            boolean gzip = false;
+            ResourceMetadata metadata = getMetadata(resource);
+            File gzipped = null; // read once, the metadata can drop it anytime
+            String variant = null;
+            if (metadata != null) {
+                gzipped = metadata.gzipped;
+                if (encoding != null) {
+                    variant = getVariant(request, filtering, encoding, prologue, epilogue, absolute);
+                }
+                etag = metadata.getETag((variant == null) ? null : hash(variant));
+                lastModified = metadata.lastModified;
+                
+                // binary files are only sent compressed if they come that way, text gets compressed as it's rendered
+                // (once if the render cache is on)
+                boolean compressible = _compressionThreshold >= 0 && metadata.length >= _compressionThreshold && isText(mimeType) &&
+                    (encoding != null || gzipped != null);
+                if (compressible) {
+                    response.setHeader("Vary", "Accept-Encoding");
+                    if (acceptsGzip(request)) {
+                        gzip = true;
+                        etag = etag.substring(0, etag.length() - 1) + "-gzip\"";
+                    }
+                }
+                
+                response.setHeader("ETag", etag);
+                if (metadata.lastModified > 0) { // unknown, the ETag alone has to do
+                    response.setDateHeader("Last-Modified", metadata.lastModified);
+                }
+                response.setHeader("Cache-Control", _cacheControl);
+                if (isNotModified(request, etag, metadata.lastModified)) {
+                    response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                    _logger.trace("< send {} (not modified)", resource);
+                    return true;
+                }
+            }
             
-            // NOTE(SM): I've disabled the HTTP caching-related headers for now 
-            //           we should introduce this back in the future once we start
-            //           fine tuning the system but for now since it's hard to 
-            //           understand when ajax calls are cached or not it's better
-            //           to develop without worrying about the cache
+            if (encoding == null && "file".equals(resource.getProtocol()) && !resource.getPath().endsWith("/")) {
+                try {
+                    File file = (gzip) ? gzipped : new File(resource.toURI());
+                    FileSender.send(file, request, response, mimeType, (gzip) ? "gzip" : null, etag, lastModified);
+                } catch (Exception e) {
+                    _logger.error("Error processing " + resource, e);
+                }
+                _logger.trace("< send {}", resource);
+                return true;
+            }
             
-//            long lastModified = urlConnection.getLastModified();
-//
-//            long ifModifiedSince = request.getDateHeader("If-Modified-Since");
-//            if (lastModified == 0 || ifModifiedSince / 1000 < lastModified / 1000) {
-//                response.setDateHeader("Last-Modified", lastModified);
-              
-                if (encoding == null) {
-                    InputStream input = null;
-                    OutputStream output = null;
-                    try {
-                        input = new BufferedInputStream(urlConnection.getInputStream()); 
-                        response.setHeader("Content-Type", mimeType);
-                        output = response.getOutputStream();
-                        IOUtils.copy(input, output);
-                    } catch (Exception e) {
-                        _logger.error("Error processing " + resource, e);
-                    } finally {
-                        if (input != null) input.close();
-                        if (output != null) output.close();
+            if (encoding != null && _renderCache != null && variant != null) {
+                String key = _name + ((filtering) ? " rewritten " : " ") + metadata.hash + " " + variant;
+                RenderCache.Entry entry = _renderCache.get(key, lastModified);
+                try {
+                    if (entry == null) {
+                        entry = new RenderCache.Entry(render(request, response, resource, metadata, filtering, encoding, prologue, epilogue, absolute), lastModified);
+                        _renderCache.put(key, entry);
                     }
-                } else {
-                    Reader input = null;
-                    Writer output = null;
-                    try {
-                        input = new BufferedReader(new InputStreamReader(urlConnection.getInputStream(), encoding));
-                        response.setHeader("Content-Type", mimeType + ";charset=" + encoding);
-                        response.setCharacterEncoding(encoding);
-                        output = (filtering) ? getFilteringWriter(request, response, absolute) : response.getWriter();
-                        
-                        if (prologue != null) {
-                            output.write(prologue);
-                        }
-                        
-                        IOUtils.copy(input, output);
-                        
-                        if (epilogue != null) {
-                            output.write(epilogue);
-                        }
-                    } catch (Exception e) {
-                        _logger.error("Error processing " + resource, e);
-                    } finally {
-                        if (input != null) input.close();
-                        if (output != null) output.close();
+                    byte[] content = entry.getContent();
+                    if (gzip) {
+                        content = getCompressed(key, entry, resource, metadata);
+                        response.setHeader("Content-Encoding", "gzip");
+                    }
+                    response.setHeader("Content-Type", mimeType + ";charset=" + encoding);
+                    response.setCharacterEncoding(encoding);
+                    writeContent(response, content);
+                } catch (Exception e) {
+                    _logger.error("Error processing " + resource, e);
+                }
+                _logger.trace("< send {}", resource);
+                return true;
+            }
+            
+            if (encoding == null) {
+                InputStream input = null;
+                OutputStream output = null;
+                try {
+                    input = new BufferedInputStream(resource.openConnection().getInputStream()); 
+                    response.setHeader("Content-Type", mimeType);
+                    output = response.getOutputStream();
+                    IOUtils.copy(input, output);
+                } catch (Exception e) {
+                    _logger.error("Error processing " + resource, e);
+                } finally {
+                    if (input != null) input.close();
+                    if (output != null) output.close();
+                }
+            } else {
+                try {
+                    response.setHeader("Content-Type", mimeType + ";charset=" + encoding);
+                    response.setCharacterEncoding(encoding);
+                    if (gzip) {
+                        response.setHeader("Content-Encoding", "gzip");
+                        writeContent(response, gzip(render(request, response, resource, metadata, filtering, encoding, prologue, epilogue, absolute)));
+                    } else {
+                        writeText(request, response, resource, metadata, filtering, encoding, prologue, epilogue, absolute);
                     }
+                } catch (Exception e) {
+                    _logger.error("Error processing " + resource, e);
                 }
-//            } else {
-//                response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
-//            }
+            }
         } else {
             response.sendError(HttpServletResponse.SC_NOT_FOUND, "Couldn't find the specified resource");
         }
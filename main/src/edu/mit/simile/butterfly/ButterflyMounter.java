@@ -20,7 +20,11 @@ public class ButterflyMounter {
     private Map<MountPoint,ButterflyModule> modulesByMountPoint = new HashMap<MountPoint,ButterflyModule>();
     private Map<String,Set<ButterflyModule>> modulesByMountPath = new HashMap<String,Set<ButterflyModule>>();
     
+    // the routing trie, compiled from the registered mount points on first use
+    private volatile Node trie;
+    
     public void register(MountPoint mountPoint, ButterflyModule module) {
+        trie = null;
         module.setMountPoint(mountPoint);
         if (mountPoint.equals(MountPoint.ROOT)) {
             rootModule = module;
@@ -43,39 +47,156 @@ public class ButterflyMounter {
         return rootModule;
     }
     
+    /**
+     * Returns the module mounted on the longest mount path that is a prefix
+     * of the given path (at a '/' boundary) and that has a module either for
+     * the given zone or for no zone in particular. If nothing matches, the 
+     * root module is returned.
+     */
     public ButterflyModule getModule(String path, Zone zone) {
+        Node node = trie;
+        if (node == null) {
+            node = compile();
+        }
+        
         ButterflyModule m = null;
-        String p = path;
-        while (m == null) {
-            int index = p.lastIndexOf('/');
-            if (index >= 0) {
-                String leader = p.substring(0,index + 1);
-                Set<ButterflyModule> mods = modulesByMountPath.get(leader);
-                if (mods != null) {
-                    if (mods.size() == 1) {
-                        m = mods.iterator().next();
+        if (path != null && path.length() > 0 && path.charAt(0) == '/') {
+            String zoneName = (zone == null) ? null : zone.getName();
+            m = node.resolve(zoneName);
+            int start = 1;
+            int end;
+            while ((end = path.indexOf('/', start)) >= 0) {
+                node = node.get(path, start, end);
+                if (node == null) break;
+                ButterflyModule candidate = node.resolve(zoneName);
+                if (candidate != null) {
+                    m = candidate;
+                }
+                start = end + 1;
+            }
+        }
+        return (m != null) ? m : rootModule;
+    }
+    
+    private synchronized Node compile() {
+        Node root = trie;
+        if (root == null) {
+            root = new Node();
+            for (Map.Entry<String,Set<ButterflyModule>> e : modulesByMountPath.entrySet()) {
+                String mountPath = e.getKey();
+                Node node = root;
+                int start = 1;
+                int end;
+                while ((end = mountPath.indexOf('/', start)) >= 0) {
+                    node = node.add(mountPath.substring(start, end));
+                    start = end + 1;
+                }
+                node.setModules(e.getValue());
+            }
+            root.seal();
+            logger.debug("compiled routing trie for {} mount paths", modulesByMountPath.size());
+            trie = root;
+        }
+        return root;
+    }
+    
+    /*
+     * A node of the routing trie, which stands for a mount path and is 
+     * keyed by path segment. The choice of the module to use for each zone is 
+     * resolved when the trie is compiled and the children are kept in an 
+     * open addressing table that is probed with regions of the request path,
+     * so that walking the trie doesn't allocate anything.
+     */
+    private static final class Node {
+        
+        // used only while the trie is being compiled
+        private Map<String,Node> building = new HashMap<String,Node>();
+        
+        private String[] keys;
+        private Node[] children;
+        private int mask;
+        
+        private ButterflyModule single;
+        private ButterflyModule fallback;
+        private Map<String,ButterflyModule> byZone;
+        
+        Node add(String segment) {
+            Node child = building.get(segment);
+            if (child == null) {
+                child = new Node();
+                building.put(segment, child);
+            }
+            return child;
+        }
+        
+        void setModules(Set<ButterflyModule> modules) {
+            if (modules.size() == 1) {
+                single = modules.iterator().next();
+            } else {
+                byZone = new HashMap<String,ButterflyModule>();
+                for (ButterflyModule module : modules) {
+                    String zone = module.getMountPoint().getZone();
+                    if (zone == null) {
+                        fallback = module;
                     } else {
-                        for (ButterflyModule mod : mods) {
-                            String z = mod.getMountPoint().getZone();
-                            if (z == null) {
-                                m = mod;
-                            } else {
-                                if (z.equals(zone.getName())) {
-                                    m = mod;
-                                    break;
-                                }
-                            }
-                        }
+                        byZone.put(zone, module);
                     }
                 }
-                if (m == null) {
-                    p = leader.substring(0, leader.length() - 1);
+            }
+        }
+        
+        void seal() {
+            int size = 1;
+            while (size < building.size() * 2) {
+                size <<= 1;
+            }
+            keys = new String[size];
+            children = new Node[size];
+            mask = size - 1;
+            for (Map.Entry<String,Node> e : building.entrySet()) {
+                String key = e.getKey();
+                int i = hash(key, 0, key.length()) & mask;
+                while (keys[i] != null) {
+                    i = (i + 1) & mask;
                 }
+                keys[i] = key;
+                children[i] = e.getValue();
+                e.getValue().seal();
+            }
+            building = null;
+        }
+        
+        Node get(String path, int start, int end) {
+            int length = end - start;
+            int i = hash(path, start, end) & mask;
+            String key;
+            while ((key = keys[i]) != null) {
+                if (key.length() == length && path.regionMatches(start, key, 0, length)) {
+                    return children[i];
+                }
+                i = (i + 1) & mask;
+            }
+            return null;
+        }
+        
+        ButterflyModule resolve(String zone) {
+            if (single != null) {
+                return single;
+            } else if (byZone == null) {
+                return null;
             } else {
-                m = rootModule;
+                ButterflyModule m = (zone == null) ? null : byZone.get(zone);
+                return (m != null) ? m : fallback;
+            }
+        }
+        
+        private static int hash(String s, int start, int end) {
+            int h = 0;
+            for (int i = start; i < end; i++) {
+                h = 31 * h + s.charAt(i);
             }
+            return h ^ (h >>> 16);
         }
-        return m;
     }
     
     public Set<String> getMountPaths() {
@@ -1,11 +1,18 @@
 package edu.mit.simile.butterfly;
 
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import org.mozilla.javascript.BaseFunction;
+import org.mozilla.javascript.ClassCache;
 import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Function;
 import org.mozilla.javascript.ImporterTopLevel;
+import org.mozilla.javascript.NativeObject;
+import org.mozilla.javascript.ScriptRuntime;
 import org.mozilla.javascript.Scriptable;
 import org.mozilla.javascript.ScriptableObject;
 import org.slf4j.Logger;
@@ -22,15 +29,45 @@ public class ButterflyScope extends ScriptableObject {
 
     protected static final Logger _logger = LoggerFactory.getLogger("butterfly.scope");
     
+    // the key that Rhino associates the class cache of a top-level scope with
+    private static final String CLASS_CACHE_KEY = "ClassCache";
+    
     public ButterflyScope(ButterflyModule module, Context context) throws Exception {
+        this(module, context, (ClassCache) null);
+    }
+    
+    /**
+     * Creates a top-level scope that uses the given class cache (if any) instead 
+     * of one of its own, so that Java classes touched by the controllers don't 
+     * have to be reflected again for every new scope.
+     */
+    public ButterflyScope(ButterflyModule module, Context context, ClassCache classCache) throws Exception {
+        this(module, context, classCache, null);
+    }
+    
+    /**
+     * Creates a top-level scope that gets the scriptable classes from the given 
+     * definitions (if any) instead of defining them again, so that only the 
+     * instances that are bound to this scope need to be created.
+     */
+    public ButterflyScope(ButterflyModule module, Context context, ClassCache classCache, Definitions definitions) throws Exception {
     	_logger.trace("> new ButterflyScope for module: {}", module.getName());
     	
         // first, get a juicy top level scope that contains all the ECMA
         // objects and some Java related utility methods that Rhino provides
-        Scriptable scope = new ImporterTopLevel(context);
+        ImporterTopLevel scope = new ImporterTopLevel();
+        if (classCache != null) {
+            // this has to happen before the standard objects get a cache of their own
+            scope.associateValue(CLASS_CACHE_KEY, classCache);
+        }
+        scope.initStandardObjects(context, false);
         
         // make the "ButteflyModule" object available to this scope
-        defineClass(scope, ScriptableButterfly.class);
+        if (definitions != null) {
+            scope.put(definitions.butterfly.className, scope, new ScopedConstructor(scope, definitions.butterfly));
+        } else {
+            defineClass(scope, ScriptableButterfly.class);
+        }
 
         // and set this scope as our prototype
         setPrototype(scope);
@@ -51,10 +88,174 @@ public class ButterflyScope extends ScriptableObject {
         super.put("butterfly", this, _scriptableButterfly);
         super.put("module", this, module);
         
-        prepareScope(context, scope, module);
+        if (definitions != null) {
+            for (Definition d : definitions.scriptables) {
+                ScopedConstructor constructor = new ScopedConstructor(scope, d);
+                scope.put(d.className, scope, constructor);
+                ButterflyScriptableObject scriptable = (ButterflyScriptableObject) constructor.construct(context, this, args);
+                scriptable.init(d.module);
+                scriptable.setParentScope(this);
+                for (String name : d.module.getImplementations()) {
+                    super.put(name, this, scriptable);
+                }
+            }
+        } else {
+            prepareScope(context, scope, module);
+        }
     	_logger.trace("< new ButterflyScope for module: {}", module.getName());
     }
 
+    /**
+     * Creates a thin per-request scope on top of a sealed scope that the module
+     * shares between all requests. Only the objects that carry request state
+     * (the "butterfly" object) live here, everything else (the ECMA objects, 
+     * the scriptables and the functions defined by the controllers) is found
+     * thru the prototype chain. This relies on Rhino's dynamic scoping so that
+     * functions defined in the shared scope resolve their free variables here.
+     */
+    public ButterflyScope(ButterflyModule module, Context context, Scriptable sharedScope) throws Exception {
+        _logger.trace("> new shared ButterflyScope for module: {}", module.getName());
+
+        setPrototype(sharedScope);
+        setParentScope(null);
+
+        final Object[] args = {};
+        ScriptableButterfly _scriptableButterfly = (ScriptableButterfly) context.newObject(this, ScriptableButterfly.getName(), args);
+        _scriptableButterfly.init(module);
+        _scriptableButterfly.setParentScope(this);
+        super.put("butterfly", this, _scriptableButterfly);
+        super.put("module", this, module);
+
+        _logger.trace("< new shared ButterflyScope for module: {}", module.getName());
+    }
+
+    /**
+     * The scriptable classes that a module and its dependencies bring to its scopes, 
+     * defined once (with sealed prototypes) in a scope of their own.
+     */
+    public static class Definitions {
+        final Definition butterfly;
+        final List<Definition> scriptables = new ArrayList<Definition>();
+        
+        Definitions(Definition butterfly) {
+            this.butterfly = butterfly;
+        }
+    }
+    
+    static class Definition {
+        final ButterflyModule module;
+        final String className;
+        final Function constructor;
+        final Scriptable prototype;
+        
+        Definition(ButterflyModule module, String className, Function constructor) {
+            this.module = module;
+            this.className = className;
+            this.constructor = constructor;
+            this.prototype = (Scriptable) getProperty(constructor, "prototype");
+        }
+    }
+    
+    /*
+     * The constructor a scope gets for a class that was defined once. It has a
+     * prototype of its own that inherits from the sealed one of the definition
+     * (which holds the Java methods), so that scripts can still extend the class, 
+     * like Butterfly.js does, without that leaking into other scopes.
+     */
+    static class ScopedConstructor extends BaseFunction {
+        
+        private static final long serialVersionUID = 1L;
+        
+        private final Definition _definition;
+        
+        ScopedConstructor(Scriptable scope, Definition definition) {
+            _definition = definition;
+            ScriptRuntime.setFunctionProtoAndParent(this, scope);
+            NativeObject prototype = new NativeObject();
+            prototype.setPrototype(definition.prototype);
+            prototype.setParentScope(scope);
+            prototype.defineProperty("constructor", this, DONTENUM);
+            setImmunePrototypeProperty(prototype);
+        }
+        
+        @Override
+        public String getFunctionName() {
+            return _definition.className;
+        }
+        
+        @Override
+        public Object call(Context cx, Scriptable scope, Scriptable thisObj, Object[] args) {
+            return construct(cx, scope, args);
+        }
+        
+        @Override
+        public Scriptable construct(Context cx, Scriptable scope, Object[] args) {
+            Scriptable o = _definition.constructor.construct(cx, scope, args);
+            o.setPrototype((Scriptable) getPrototypeProperty());
+            return o;
+        }
+    }
+    
+    /**
+     * Defines the scriptable classes of the given module, walking its dependencies
+     * the same way a scope without definitions would.
+     */
+    public static Definitions define(ButterflyModule module, Context context, ClassCache classCache) throws Exception {
+        _logger.trace("> define({})", module.getName());
+        ImporterTopLevel home = new ImporterTopLevel();
+        if (classCache != null) {
+            home.associateValue(CLASS_CACHE_KEY, classCache);
+        }
+        home.initStandardObjects(context, true);
+        
+        Definitions definitions = new Definitions(new Definition(null, ScriptableButterfly.getName(), defineSealedClass(home, ScriptableButterfly.class)));
+        define(home, module, definitions);
+        _logger.trace("< define({})", module.getName());
+        return definitions;
+    }
+    
+    private static void define(Scriptable home, ButterflyModule module, Definitions definitions) throws Exception {
+        for (ButterflyModule m : module.getDependencies().values()) {
+            define(home, m, definitions);
+        }
+        for (ButterflyScriptableObject c : module.getScriptables()) {
+            Function constructor = defineSealedClass(home, c.getClass());
+            definitions.scriptables.add(new Definition(module, c.getClassName(), constructor));
+            _logger.debug("defined class: {}", c.getClassName());
+        }
+    }
+    
+    private static Function defineSealedClass(Scriptable home, Class<? extends Scriptable> c) throws Exception {
+        String name = defineClass(home, c, true, false);
+        return (Function) getProperty(home, name);
+    }
+
+    /**
+     * Creates a class cache that many top-level scopes can share. ClassCache.associate()
+     * makes the scope it's given the one that the reflected members are created in,
+     * so the cache gets a scope of its own rather than the first (short lived) scope 
+     * that happens to use it. Returns null if this version of Rhino doesn't let the
+     * cache be shared this way.
+     */
+    public static ClassCache createSharedClassCache(Context context) {
+        ClassCache cache = new ClassCache();
+        ScriptableObject home = new NativeObject();
+        cache.associate(home);
+        context.initStandardObjects(home, true);
+        
+        ScriptableObject probe = new NativeObject();
+        probe.associateValue(CLASS_CACHE_KEY, cache);
+        try {
+            if (ClassCache.get(probe) == cache) {
+                return cache;
+            }
+        } catch (RuntimeException e) {
+            // not found under that key
+        }
+        _logger.warn("Can't share the Rhino class cache, every scope will have its own");
+        return null;
+    }
+
     private void prepareScope(Context context, Scriptable scope, ButterflyModule module) throws Exception {
     	_logger.trace("> prepareScope({})", module.getName());
     	
@@ -0,0 +1,68 @@
+package edu.mit.simile.butterfly;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.WrapFactory;
+
+/**
+ * This is the WrapFactory that all the contexts of a Butterfly instance share.
+ * It wraps Java objects the way Rhino does but keeps track of the classes it
+ * has seen, so that it's possible to tell how many wraps are of classes that
+ * were wrapped before. These count wraps, not the lookups of the (shared)
+ * class cache itself, but a class wrapped before is one the cache has already
+ * reflected.
+ */
+public class ButterflyWrapFactory extends WrapFactory {
+
+    private final Map<Class<?>,Boolean> _classes = new ConcurrentHashMap<Class<?>,Boolean>();
+
+    private final LongAdder _hits = new LongAdder();
+    private final LongAdder _misses = new LongAdder();
+
+    @Override
+    public Scriptable wrapAsJavaObject(Context cx, Scriptable scope, Object javaObject, Class<?> staticType) {
+        count(javaObject.getClass());
+        return super.wrapAsJavaObject(cx, scope, javaObject, staticType);
+    }
+
+    @Override
+    public Scriptable wrapJavaClass(Context cx, Scriptable scope, Class<?> javaClass) {
+        count(javaClass);
+        return super.wrapJavaClass(cx, scope, javaClass);
+    }
+
+    private void count(Class<?> c) {
+        // only the first wrap of a class writes to the map, the others just read it
+        if (_classes.containsKey(c) || _classes.putIfAbsent(c, Boolean.TRUE) != null) {
+            _hits.increment();
+        } else {
+            _misses.increment();
+        }
+    }
+
+    /**
+     * Returns the number of wraps of objects (or classes) of a class that was wrapped
+     * before. This counts wraps, not reuses of the class cache.
+     */
+    public long getHits() {
+        return _hits.sum();
+    }
+
+    /**
+     * Returns the number of wraps of a class that was never wrapped before, that is
+     * the number of classes wrapped so far. This counts wraps, not misses of the
+     * class cache.
+     */
+    public long getMisses() {
+        return _misses.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "wrap factory: " + _classes.size() + " classes, " + getHits() + " hits, " + getMisses() + " misses";
+    }
+}
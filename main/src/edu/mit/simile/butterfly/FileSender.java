@@ -0,0 +1,351 @@
+package edu.mit.simile.butterfly;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This class sends files to the client without copying their content
+ * thru the heap whenever the servlet container allows it: Jetty's output
+ * streams can send a memory mapped buffer directly, which is done for large
+ * files (whose mappings are kept and reused, since only the garbage collector
+ * releases them), and output streams that are channels themselves get the 
+ * file transferred to them. Everything else gets the file copied thru a
+ * buffer, once.
+ *
+ * It also answers byte range requests (with single or multipart
+ * partial content) straight from the file channel.
+ */
+class FileSender {
+
+    private static final Logger _logger = LoggerFactory.getLogger("butterfly.file_sender");
+
+    // the "sendContent(ByteBuffer)" method of the container's output stream class, if there is one
+    private static final Map<Class<?>,Object> _sendContentMethods = new ConcurrentHashMap<Class<?>,Object>();
+
+    private static final Object NONE = new Object();
+
+    // requests asking for more ranges than this get the whole file instead
+    private static final int MAX_RANGES = 32;
+
+    private static final String CRLF = "\r\n";
+
+    // files smaller than this are not worth a mapping of their own
+    private static final long MAP_THRESHOLD = 256 * 1024;
+
+    // how many mappings are kept around, the least recently used go first
+    private static final int MAX_MAPPINGS = 64;
+
+    private static final int BUFFER_SIZE = 8192;
+
+    /*
+     * a mapping of the whole content of a file, valid as long as the file
+     * keeps the same size and modification time
+     */
+    private static class Mapping {
+        final long lastModified;
+        final long length;
+        final MappedByteBuffer buffer;
+
+        Mapping(long lastModified, long length, MappedByteBuffer buffer) {
+            this.lastModified = lastModified;
+            this.length = length;
+            this.buffer = buffer;
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private static final Map<File,Mapping> _mappings = new LinkedHashMap<File,Mapping>(16, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<File,Mapping> eldest) {
+            return size() > MAX_MAPPINGS;
+        }
+    };
+
+    /**
+     * Sends the given file, or the ranges of it that the request asks for. The ETag
+     * and last modification time of the file (if known) are used to evaluate the
+     * If-Range precondition. The content encoding (if any) is only declared once
+     * the file is open.
+     */
+    static void send(File file, HttpServletRequest request, HttpServletResponse response, String mimeType, String contentEncoding, String etag, long lastModified) throws IOException {
+        FileInputStream input = new FileInputStream(file);
+        try {
+            if (contentEncoding != null) {
+                response.setHeader("Content-Encoding", contentEncoding);
+            }
+            FileChannel channel = input.getChannel();
+            long length = channel.size();
+            response.setHeader("Accept-Ranges", "bytes");
+
+            List<long[]> ranges = null;
+            String range = request.getHeader("Range");
+            if (range != null && "GET".equals(request.getMethod()) && isRangeApplicable(request, etag, lastModified)) {
+                ranges = parseRanges(range, length);
+            }
+
+            if (ranges == null) {
+                response.setHeader("Content-Type", mimeType);
+                response.setContentLengthLong(length);
+                sendWhole(file, channel, length, response);
+            } else if (ranges.isEmpty()) {
+                response.setHeader("Content-Range", "bytes */" + length);
+                response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+            } else if (ranges.size() == 1) {
+                long[] r = ranges.get(0);
+                response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                response.setHeader("Content-Type", mimeType);
+                response.setHeader("Content-Range", "bytes " + r[0] + "-" + r[1] + "/" + length);
+                response.setContentLengthLong(r[1] - r[0] + 1);
+                OutputStream output = response.getOutputStream();
+                try {
+                    transfer(channel, r[0], r[1] - r[0] + 1, output);
+                } finally {
+                    output.close();
+                }
+            } else {
+                sendMultipart(channel, length, ranges, response, mimeType);
+            }
+        } finally {
+            input.close();
+        }
+    }
+
+    private static void sendWhole(File file, FileChannel channel, long length, HttpServletResponse response) throws IOException {
+        OutputStream output = response.getOutputStream();
+        try {
+            Method sendContent = (length >= MAP_THRESHOLD) ? getSendContentMethod(output.getClass()) : null;
+            if (sendContent != null) {
+                ByteBuffer buffer = getMapping(file, channel, length).duplicate();
+                try {
+                    sendContent.invoke(output, buffer);
+                } catch (InvocationTargetException e) {
+                    Throwable t = e.getCause();
+                    if (t instanceof IOException) {
+                        throw (IOException) t;
+                    }
+                    throw new IOException(t);
+                } catch (IllegalAccessException e) {
+                    throw new IOException(e);
+                }
+            } else {
+                transfer(channel, 0, length, output);
+            }
+        } finally {
+            output.close();
+        }
+    }
+
+    private static void sendMultipart(FileChannel channel, long length, List<long[]> ranges, HttpServletResponse response, String mimeType) throws IOException {
+        String boundary = UUID.randomUUID().toString();
+        List<byte[]> headers = new ArrayList<byte[]>(ranges.size());
+        long contentLength = 0;
+        for (long[] r : ranges) {
+            String header = CRLF + "--" + boundary + CRLF +
+                "Content-Type: " + mimeType + CRLF +
+                "Content-Range: bytes " + r[0] + "-" + r[1] + "/" + length + CRLF + CRLF;
+            byte[] bytes = header.getBytes("ISO-8859-1");
+            headers.add(bytes);
+            contentLength += bytes.length + r[1] - r[0] + 1;
+        }
+        byte[] trailer = (CRLF + "--" + boundary + "--" + CRLF).getBytes("ISO-8859-1");
+        contentLength += trailer.length;
+
+        response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        response.setHeader("Content-Type", "multipart/byteranges; boundary=" + boundary);
+        response.setContentLengthLong(contentLength);
+
+        OutputStream output = response.getOutputStream();
+        try {
+            for (int i = 0; i < ranges.size(); i++) {
+                long[] r = ranges.get(i);
+                output.write(headers.get(i));
+                transfer(channel, r[0], r[1] - r[0] + 1, output);
+            }
+            output.write(trailer);
+        } finally {
+            output.close();
+        }
+    }
+
+    /*
+     * the mapping of the whole file, shared by all the requests that send it
+     */
+    private static MappedByteBuffer getMapping(File file, FileChannel channel, long length) throws IOException {
+        long lastModified = file.lastModified();
+        synchronized (_mappings) {
+            Mapping mapping = _mappings.get(file);
+            if (mapping == null || mapping.lastModified != lastModified || mapping.length != length) {
+                mapping = new Mapping(lastModified, length, channel.map(FileChannel.MapMode.READ_ONLY, 0, length));
+                _mappings.put(file, mapping);
+            }
+            return mapping.buffer;
+        }
+    }
+
+    private static void transfer(FileChannel channel, long position, long count, OutputStream output) throws IOException {
+        long end = position + count;
+        if (output instanceof WritableByteChannel) {
+            while (position < end) {
+                long n = channel.transferTo(position, end - position, (WritableByteChannel) output);
+                if (n <= 0) {
+                    throw new IOException("File got shorter while being sent");
+                }
+                position += n;
+            }
+        } else {
+            // a stream only takes arrays, so the content goes thru one (and only one) on its way out
+            byte[] bytes = new byte[(int) Math.min(BUFFER_SIZE, count)];
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            while (position < end) {
+                buffer.clear();
+                buffer.limit((int) Math.min(bytes.length, end - position));
+                int n = channel.read(buffer, position);
+                if (n <= 0) {
+                    throw new IOException("File got shorter while being sent");
+                }
+                output.write(bytes, 0, n);
+                position += n;
+            }
+        }
+    }
+
+    /*
+     * tell whether the Range header should be honored, which is not the case
+     * if the request has an If-Range precondition that the file doesn't meet
+     */
+    static boolean isRangeApplicable(HttpServletRequest request, String etag, long lastModified) {
+        String ifRange = request.getHeader("If-Range");
+        if (ifRange == null) {
+            return true;
+        }
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return etag != null && ifRange.equals(etag); // only strong validators are good here
+        }
+        try {
+            long date = request.getDateHeader("If-Range");
+            return lastModified > 0 && date / 1000 == lastModified / 1000;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Parses the value of a Range header into a list of [first,last] byte positions
+     * for a file of the given length, in order and with the ranges that overlap
+     * or touch merged. Returns null if the header isn't valid or asks for too many
+     * ranges, or for more bytes than the whole file (in which case the header must
+     * be ignored) and an empty list if none of the ranges can be satisfied.
+     */
+    static List<long[]> parseRanges(String header, long length) {
+        header = header.trim();
+        if (!header.startsWith("bytes=")) {
+            return null;
+        }
+        String[] specs = header.substring(6).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+        List<long[]> ranges = new ArrayList<long[]>(specs.length);
+        long total = 0;
+        try {
+            for (String spec : specs) {
+                spec = spec.trim();
+                int dash = spec.indexOf('-');
+                if (dash < 0) {
+                    return null;
+                }
+                String first = spec.substring(0, dash).trim();
+                String last = spec.substring(dash + 1).trim();
+                long start;
+                long end;
+                if (first.length() == 0) {
+                    long suffix = Long.parseLong(last);
+                    if (suffix < 0) {
+                        return null;
+                    } else if (suffix == 0) {
+                        continue;
+                    }
+                    start = Math.max(0, length - suffix);
+                    end = length - 1;
+                } else {
+                    start = Long.parseLong(first);
+                    end = (last.length() == 0) ? length - 1 : Long.parseLong(last);
+                    if (start < 0 || end < start) {
+                        return null;
+                    }
+                    end = Math.min(end, length - 1);
+                }
+                if (start < length) {
+                    ranges.add(new long[] { start, end });
+                    total += end - start + 1;
+                }
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if (total > length) {
+            return null;
+        }
+        return merge(ranges);
+    }
+
+    private static List<long[]> merge(List<long[]> ranges) {
+        if (ranges.size() < 2) {
+            return ranges;
+        }
+        Collections.sort(ranges, new Comparator<long[]>() {
+            public int compare(long[] a, long[] b) {
+                return Long.compare(a[0], b[0]);
+            }
+        });
+        List<long[]> merged = new ArrayList<long[]>(ranges.size());
+        long[] last = null;
+        for (long[] r : ranges) {
+            if (last != null && r[0] <= last[1] + 1) {
+                last[1] = Math.max(last[1], r[1]);
+            } else {
+                last = r;
+                merged.add(r);
+            }
+        }
+        return merged;
+    }
+
+    private static Method getSendContentMethod(Class<?> c) {
+        Object o = _sendContentMethods.get(c);
+        if (o == null) {
+            try {
+                Method m = c.getMethod("sendContent", ByteBuffer.class);
+                m.setAccessible(true);
+                o = m;
+                _logger.debug("Files will be sent thru {}", m);
+            } catch (Exception e) {
+                o = NONE;
+            }
+            _sendContentMethods.put(c, o);
+        }
+        return (o == NONE) ? null : (Method) o;
+    }
+}
@@ -0,0 +1,244 @@
+package edu.mit.simile.butterfly;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Scriptable;
+
+/**
+ * This class parses JSON as it's read and builds the javascript objects
+ * and arrays it describes directly, without ever holding the whole text
+ * in memory or handing it over to the javascript interpreter.
+ *
+ * Since what gets parsed usually comes from the outside, the parser
+ * gives up on texts that are longer than a given number of chars or that
+ * nest objects and arrays deeper than a given depth (negative limits
+ * mean there is no limit).
+ */
+public class JSONParser {
+
+    private static final Pattern NUMBER = Pattern.compile("-?(0|[1-9][0-9]*)(\\.[0-9]+)?([eE][+-]?[0-9]+)?");
+
+    private final Reader _reader;
+    private final Context _context;
+    private final Scriptable _scope;
+    private final long _maxSize;
+    private final int _maxDepth;
+
+    private final char[] _buffer = new char[4096];
+    private int _position;
+    private int _limit;
+    private long _read;
+    private int _depth;
+
+    private final StringBuilder _chars = new StringBuilder();
+
+    public JSONParser(Reader reader, Context context, Scriptable scope, long maxSize, int maxDepth) {
+        _reader = reader;
+        _context = context;
+        _scope = scope;
+        _maxSize = maxSize;
+        _maxDepth = maxDepth;
+    }
+
+    /**
+     * Parses the whole text as a single JSON value.
+     */
+    public Object parse() throws IOException {
+        Object value = parseValue(next());
+        int c = next();
+        if (c >= 0) {
+            throw error("unexpected '" + (char) c + "' after the end of the value");
+        }
+        return value;
+    }
+
+    private Object parseValue(int c) throws IOException {
+        switch (c) {
+            case '{': return parseObject();
+            case '[': return parseArray();
+            case '"': return parseString();
+            case 't': expect("rue"); return Boolean.TRUE;
+            case 'f': expect("alse"); return Boolean.FALSE;
+            case 'n': expect("ull"); return null;
+            case -1: throw error("unexpected end of text");
+            default:
+                if (c == '-' || (c >= '0' && c <= '9')) {
+                    return parseNumber(c);
+                }
+                throw error("unexpected '" + (char) c + "'");
+        }
+    }
+
+    private Scriptable parseObject() throws IOException {
+        enter();
+        Scriptable object = _context.newObject(_scope);
+        int c = next();
+        if (c != '}') {
+            while (true) {
+                if (c != '"') throw error("expected a property name");
+                String name = parseString();
+                if (next() != ':') throw error("expected ':' after property '" + name + "'");
+                Object value = parseValue(next());
+                int index = toIndex(name);
+                if (index >= 0) {
+                    object.put(index, object, value);
+                } else {
+                    object.put(name, object, value);
+                }
+                c = next();
+                if (c == '}') break;
+                if (c != ',') throw error("expected ',' or '}' in object");
+                c = next();
+            }
+        }
+        _depth--;
+        return object;
+    }
+
+    private Scriptable parseArray() throws IOException {
+        enter();
+        List<Object> elements = new ArrayList<Object>();
+        int c = next();
+        if (c != ']') {
+            while (true) {
+                elements.add(parseValue(c));
+                c = next();
+                if (c == ']') break;
+                if (c != ',') throw error("expected ',' or ']' in array");
+                c = next();
+            }
+        }
+        _depth--;
+        return _context.newArray(_scope, elements.toArray());
+    }
+
+    /*
+     * the opening quote has already been read
+     */
+    private String parseString() throws IOException {
+        _chars.setLength(0);
+        while (true) {
+            if (_position == _limit && !fill()) throw error("unterminated string");
+            int start = _position;
+            while (_position < _limit) {
+                char c = _buffer[_position];
+                if (c == '"' || c == '\\' || c < 0x20) break;
+                _position++;
+            }
+            _chars.append(_buffer, start, _position - start);
+            if (_position == _limit) continue;
+
+            char c = _buffer[_position++];
+            if (c == '"') {
+                return _chars.toString();
+            } else if (c == '\\') {
+                int e = read();
+                switch (e) {
+                    case '"': case '\\': case '/': _chars.append((char) e); break;
+                    case 'b': _chars.append('\b'); break;
+                    case 'f': _chars.append('\f'); break;
+                    case 'n': _chars.append('\n'); break;
+                    case 'r': _chars.append('\r'); break;
+                    case 't': _chars.append('\t'); break;
+                    case 'u':
+                        int u = 0;
+                        for (int i = 0; i < 4; i++) {
+                            int d = Character.digit(read(), 16);
+                            if (d < 0) throw error("invalid unicode escape");
+                            u = (u << 4) | d;
+                        }
+                        _chars.append((char) u);
+                        break;
+                    default:
+                        throw error("invalid escape in string");
+                }
+            } else {
+                throw error("control character in string");
+            }
+        }
+    }
+
+    private Object parseNumber(int c) throws IOException {
+        _chars.setLength(0);
+        _chars.append((char) c);
+        while (_position < _limit || fill()) {
+            char d = _buffer[_position];
+            if ((d >= '0' && d <= '9') || d == '.' || d == 'e' || d == 'E' || d == '+' || d == '-') {
+                _chars.append(d);
+                _position++;
+            } else {
+                break;
+            }
+        }
+        String number = _chars.toString();
+        if (!NUMBER.matcher(number).matches()) {
+            throw error("invalid number '" + number + "'");
+        }
+        return Double.valueOf(number);
+    }
+
+    // ----------------------------------------------------------------------------
+
+    private void enter() throws IOException {
+        if (++_depth > _maxDepth && _maxDepth >= 0) {
+            throw error("nesting deeper than " + _maxDepth);
+        }
+    }
+
+    private void expect(String rest) throws IOException {
+        for (int i = 0; i < rest.length(); i++) {
+            if (read() != rest.charAt(i)) throw error("unexpected literal");
+        }
+    }
+
+    /*
+     * the next char that's not whitespace, -1 at the end of the text
+     */
+    private int next() throws IOException {
+        while (_position < _limit || fill()) {
+            char c = _buffer[_position++];
+            if (c != ' ' && c != '\t' && c != '\n' && c != '\r') return c;
+        }
+        return -1;
+    }
+
+    private int read() throws IOException {
+        return (_position < _limit || fill()) ? _buffer[_position++] : -1;
+    }
+
+    private boolean fill() throws IOException {
+        int n = _reader.read(_buffer, 0, _buffer.length);
+        if (n <= 0) return false;
+        _read += n;
+        if (_read > _maxSize && _maxSize >= 0) {
+            throw error("text longer than " + _maxSize + " chars");
+        }
+        _position = 0;
+        _limit = n;
+        return true;
+    }
+
+    private IOException error(String message) {
+        return new IOException("JSON parsing failed near char " + (_read - _limit + _position) + ": " + message);
+    }
+
+    /*
+     * names like "3" are array indexes, javascript stores them as numbers
+     */
+    private static int toIndex(String name) {
+        int length = name.length();
+        if (length == 0 || length > 9 || (length > 1 && name.charAt(0) == '0')) return -1;
+        int index = 0;
+        for (int i = 0; i < length; i++) {
+            char c = name.charAt(i);
+            if (c < '0' || c > '9') return -1;
+            index = index * 10 + (c - '0');
+        }
+        return index;
+    }
+}
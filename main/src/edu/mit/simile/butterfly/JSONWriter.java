@@ -0,0 +1,213 @@
+package edu.mit.simile.butterfly;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import org.mozilla.javascript.Callable;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.ScriptRuntime;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+import org.mozilla.javascript.Undefined;
+import org.mozilla.javascript.Wrapper;
+
+/**
+ * This class serializes javascript values as JSON straight to a writer,
+ * walking the object graph once without building any intermediate string.
+ *
+ * The output is the same as the one of the javascript serializer that
+ * Butterfly.js used to have (adapted from http://www.json.org/json.js),
+ * quirks included: wrapped Java objects (collections as well) are written
+ * as the quoted string their toString() returns, objects that have both
+ * a "0" and a "length" property are taken for arrays, and values that
+ * javascript can't serialize (undefined, functions) are left out.
+ */
+public class JSONWriter {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final Writer _writer;
+    private final Scriptable _objectPrototype;
+    private final Scriptable _arrayPrototype;
+
+    /**
+     * Creates a writer for values that belong to the given scope, which
+     * is where the Object and Array constructors are looked up.
+     */
+    public JSONWriter(Writer writer, Scriptable scope) {
+        _writer = writer;
+        _objectPrototype = ScriptableObject.getObjectPrototype(scope);
+        _arrayPrototype = ScriptableObject.getArrayPrototype(scope);
+    }
+
+    /**
+     * Writes the given value the way butterfly.toJSONString() does: objects
+     * are serialized, anything else is written as its unquoted string value.
+     */
+    public void write(Object o) throws IOException {
+        if (o instanceof Scriptable && inherits((Scriptable) o, _objectPrototype)) {
+            writeObject(o);
+        } else if (o == null || o == Undefined.instance) {
+            throw ScriptRuntime.undefCallError(o, "toString");
+        } else {
+            _writer.write(toString(o));
+        }
+    }
+
+    /*
+     * write the given value, returns false if it's of a type that doesn't get serialized
+     */
+    private boolean writeValue(Object v) throws IOException {
+        String type = typeof(v);
+        if ("object".equals(type)) {
+            writeObject(v);
+        } else if ("string".equals(type)) {
+            writeString(v.toString());
+        } else if ("number".equals(type)) {
+            double d = ((Number) v).doubleValue();
+            _writer.write((Double.isNaN(d) || Double.isInfinite(d)) ? "null" : ScriptRuntime.numberToString(d, 10));
+        } else if ("boolean".equals(type)) {
+            _writer.write(((Boolean) v).booleanValue() ? "true" : "false");
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    private void writeObject(Object o) throws IOException {
+        if (o == null) {
+            _writer.write("null");
+        } else if (!(o instanceof Scriptable)) {
+            writeString(String.valueOf(o));
+        } else {
+            Scriptable x = (Scriptable) o;
+            if (ScriptableObject.getProperty(x, "hashCode") instanceof Callable) { // here we identify Java objects that are wrapped
+                writeString(toString(x));
+            } else if (inherits(x, _arrayPrototype) || (ScriptableObject.hasProperty(x, 0) && ScriptableObject.hasProperty(x, "length"))) {
+                writeArray(x);
+            } else {
+                writeProperties(x);
+            }
+        }
+    }
+
+    private void writeArray(Scriptable x) throws IOException {
+        _writer.write('[');
+        double length = ScriptRuntime.toNumber(get(ScriptableObject.getProperty(x, "length")));
+        boolean separate = false;
+        for (int i = 0; i < length; i++) {
+            Object v = get(ScriptableObject.getProperty(x, i));
+            if (serializable(v)) {
+                if (separate) _writer.write(',');
+                writeValue(v);
+                separate = true;
+            }
+        }
+        _writer.write(']');
+    }
+
+    private void writeProperties(Scriptable x) throws IOException {
+        _writer.write('{');
+        boolean separate = false;
+        for (Object id : x.getIds()) {
+            String name;
+            Object v;
+            if (id instanceof Integer) {
+                int index = ((Integer) id).intValue();
+                if (!x.has(index, x)) continue;
+                name = String.valueOf(index);
+                v = ScriptableObject.getProperty(x, index);
+            } else if (id instanceof String) {
+                name = (String) id;
+                if (!x.has(name, x)) continue;
+                v = ScriptableObject.getProperty(x, name);
+            } else {
+                continue;
+            }
+            v = get(v);
+            if (serializable(v)) {
+                if (separate) _writer.write(',');
+                writeString(name);
+                _writer.write(':');
+                writeValue(v);
+                separate = true;
+            }
+        }
+        _writer.write('}');
+    }
+
+    /*
+     * quotes the string, escaping only what json.js used to escape: quotes, backslashes and control chars
+     */
+    private void writeString(String s) throws IOException {
+        _writer.write('"');
+        int flushed = 0;
+        int length = s.length();
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x20 && c != '"' && c != '\\') continue;
+            if (i > flushed) _writer.write(s, flushed, i - flushed);
+            flushed = i + 1;
+            switch (c) {
+                case '\b': _writer.write("\\b"); break;
+                case '\t': _writer.write("\\t"); break;
+                case '\n': _writer.write("\\n"); break;
+                case '\f': _writer.write("\\f"); break;
+                case '\r': _writer.write("\\r"); break;
+                case '"': _writer.write("\\\""); break;
+                case '\\': _writer.write("\\\\"); break;
+                default:
+                    _writer.write("\\u00");
+                    _writer.write(HEX[c >> 4]);
+                    _writer.write(HEX[c & 0xf]);
+            }
+        }
+        if (length > flushed) _writer.write(s, flushed, length - flushed);
+        _writer.write('"');
+    }
+
+    // ----------------------------------------------------------------------------
+
+    private static boolean serializable(Object v) {
+        String type = typeof(v);
+        return "object".equals(type) || "string".equals(type) || "number".equals(type) || "boolean".equals(type);
+    }
+
+    private static String typeof(Object v) {
+        if (v == null || v instanceof Scriptable || v instanceof CharSequence || v instanceof Number || v instanceof Boolean || v == Undefined.instance) {
+            return ScriptRuntime.typeof(v);
+        } else {
+            return "object"; // a Java object that didn't get wrapped
+        }
+    }
+
+    private static boolean inherits(Scriptable x, Scriptable prototype) {
+        if (prototype == null) return false;
+        for (Scriptable p = x.getPrototype(); p != null; p = p.getPrototype()) {
+            if (p == prototype) return true;
+        }
+        return false;
+    }
+
+    private static Object get(Object v) {
+        return (v == Scriptable.NOT_FOUND) ? Undefined.instance : v;
+    }
+
+    /*
+     * the string value of an object, calling the Java toString() directly for wrapped Java objects
+     */
+    private static String toString(Object o) {
+        if (o instanceof Wrapper) {
+            return String.valueOf(((Wrapper) o).unwrap());
+        } else if (o instanceof Scriptable) {
+            Scriptable x = (Scriptable) o;
+            Object f = ScriptableObject.getProperty(x, "toString");
+            Context cx = Context.getCurrentContext();
+            if (f instanceof Callable && cx != null) {
+                Object s = ((Callable) f).call(cx, ScriptableObject.getTopLevelScope(x), x, ScriptRuntime.emptyArgs);
+                return ScriptRuntime.toString(s);
+            }
+        }
+        return ScriptRuntime.toString(o);
+    }
+}
@@ -0,0 +1,156 @@
+package edu.mit.simile.butterfly;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.metaweb.lessen.ResourceFinder;
+import com.metaweb.lessen.Scope;
+import com.metaweb.lessen.URLResourceFinder;
+import com.metaweb.lessen.Utilities;
+import com.metaweb.lessen.tokenizers.CondensingTokenizer;
+import com.metaweb.lessen.tokenizers.IndentingTokenizer;
+import com.metaweb.lessen.tokenizers.Tokenizer;
+
+/**
+ * This class represents a .less stylesheet compiled into CSS, along with
+ * every file that the compilation read: the stylesheet itself and all the
+ * files it pulled in thru imports, directly or not. The compiled CSS stays
+ * valid for as long as none of these files (and the wiring of the module,
+ * that its links depend upon) changes.
+ */
+public class LessStylesheet {
+
+    private static final Logger _logger = LoggerFactory.getLogger("butterfly.less");
+
+    // the CSS with its links as they were written
+    public final String css;
+    public final LinkTemplate template;
+    public final long lastModified;
+
+    final Map<String,String> variables;
+    final int wiringHash;
+    final List<URL> sources;
+    final List<String> hashes;
+
+    LessStylesheet(String css, LinkTemplate template, long lastModified, Map<String,String> variables, int wiringHash, List<URL> sources, List<String> hashes) {
+        this.css = css;
+        this.template = template;
+        this.lastModified = lastModified;
+        this.variables = variables;
+        this.wiringHash = wiringHash;
+        this.sources = sources;
+        this.hashes = hashes;
+    }
+
+    /**
+     * Compiles the given stylesheet the way it has always been served:
+     * imports resolved, blocks condensed and indented.
+     */
+    public static LessStylesheet compile(ButterflyModuleImpl module, URL url, Map<String,String> variables) throws IOException {
+        int wiringHash = module.getWiringHash();
+        Map<URL,ButterflyModuleImpl.ResourceMetadata> files = new LinkedHashMap<URL,ButterflyModuleImpl.ResourceMetadata>();
+        TrackingResourceFinder finder = new TrackingResourceFinder(module, url, files);
+        finder.track(url);
+
+        Tokenizer tokenizer = Compiler.openLess(url, finder, variables);
+        tokenizer = new CondensingTokenizer(tokenizer, false);
+        tokenizer = new IndentingTokenizer(tokenizer);
+        StringWriter writer = new StringWriter();
+        Utilities.write(tokenizer, writer); // imports are only opened as the tokens get written
+
+        List<URL> sources = new ArrayList<URL>(files.keySet());
+        List<String> hashes = new ArrayList<String>(sources.size());
+        long lastModified = 0;
+        for (ButterflyModuleImpl.ResourceMetadata metadata : files.values()) {
+            hashes.add((metadata == null) ? null : metadata.hash);
+            if (metadata != null) {
+                lastModified = Math.max(lastModified, metadata.lastModified);
+            }
+        }
+
+        _logger.debug("Compiled stylesheet {} out of {} files", url, sources.size());
+        String css = writer.toString();
+        return new LessStylesheet(css, LinkTemplate.compile(module, css), lastModified, variables, wiringHash, sources, hashes);
+    }
+
+    /**
+     * Tells whether compiling the given stylesheet with the given variables would
+     * still give the same CSS, that is whether none of the files read changed.
+     */
+    boolean isCurrent(ButterflyModuleImpl module, URL url, Map<String,String> variables) {
+        if (wiringHash != module.getWiringHash() || !url.toString().equals(sources.get(0).toString()) || !variables.equals(this.variables)) {
+            return false;
+        }
+        for (int i = 0; i < sources.size(); i++) {
+            ButterflyModuleImpl.ResourceMetadata metadata = module.getMetadata(sources.get(i));
+            if (metadata == null ? hashes.get(i) != null : !metadata.hash.equals(hashes.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // ----------------------------------------------------------------------------
+
+    /*
+     * lessen only lets its own resource finder be used thru this protected method
+     */
+    private static class Compiler extends Utilities {
+        static Tokenizer openLess(URL url, ResourceFinder finder, Map<String,String> variables) throws IOException {
+            return wrapLess(open(url), finder, variables, new Scope(null));
+        }
+    }
+
+    /*
+     * a resource finder that records the URL of every file that it's asked for,
+     * including the ones that couldn't be found (they could show up later), along
+     * with its metadata as it was before the file got read: if the file changes
+     * while it's being compiled, the stylesheet is out of date right away
+     */
+    static class TrackingResourceFinder extends URLResourceFinder {
+
+        private final ButterflyModuleImpl _module;
+        private final Map<URL,ButterflyModuleImpl.ResourceMetadata> _files;
+
+        TrackingResourceFinder(ButterflyModuleImpl module, URL base, Map<URL,ButterflyModuleImpl.ResourceMetadata> files) {
+            super(base);
+            _module = module;
+            _files = files;
+        }
+
+        void track(URL url) {
+            if (!_files.containsKey(url)) {
+                _files.put(url, _module.getMetadata(url));
+            }
+        }
+
+        @Override
+        public Tokenizer open(String path) {
+            try {
+                URL url = new URL(_base, path);
+                track(url);
+                return Utilities.open(url);
+            } catch (Exception e) {
+                return null;
+            }
+        }
+
+        @Override
+        public ResourceFinder rebase(String path) {
+            try {
+                return new TrackingResourceFinder(_module, new URL(_base, path), _files);
+            } catch (MalformedURLException e) {
+                return null;
+            }
+        }
+    }
+}
@@ -7,171 +7,261 @@ import org.slf4j.LoggerFactory;
 
 
 /**
- * This is a special PrintWriter that is capable of incrementally looking 
- * for strings of the form "[#name#]" and replace the module "name" with 
+ * This is a special PrintWriter that is capable of incrementally looking
+ * for strings of the form "[#name#]" and replace the module "name" with
  * the URL where the named module is actually mounted. This allows modules
  * to be agnostic to where their dependencies are mount, making it easier
  * to reuse modules across different web applications.
- * 
+ *
  * NOTE: great care has been taken in making sure that this writer is
  * incremental, meaning that works by minimizing the amount of buffering
  * that it needs to operate. This is because we don't want such rewriting
- * to be an impact for the perceived performance of responses. 
+ * to be an impact for the perceived performance of responses. For the
+ * same reason, the text between markers is found with a bulk search for '['
+ * and passed along in place, without being copied or looked at char by char.
  */
 public class LinkRewriter extends PrintWriter {
 
     private static final Logger _logger = LoggerFactory.getLogger("butterfly.link_rewriter");
-    
+
     private ButterflyModule _module;
     private PrintWriter _writer;
-    private char[] _baseURL;
+    private String _baseURL;
 
     public LinkRewriter(PrintWriter writer, ButterflyModule module) {
         this(writer, module, null);
     }
-    
+
     public LinkRewriter(PrintWriter writer, ButterflyModule module, String baseURL) {
         super(writer);
         _writer = writer;
         _module = module;
-        _baseURL = (baseURL == null) ? null : baseURL.toCharArray();
+        _baseURL = baseURL;
     }
-    
+
     public enum State {
-        START, OPENING, OPENED, CLOSING, CLOSED, SLASHED, UNSLASHED
-    }   
+        START, OPENING, OPENED, CLOSING, CLOSED
+    }
 
     private State _state = State.START;
+
+    // where the marker being matched starts in the data being written, -1 if it started in an earlier write
     private int _start = -1;
-    private int _end = -1;
-    private StringBuffer _buffer = new StringBuffer(128);
-    
+
+    // the part of the marker that came with earlier writes
+    private StringBuilder _pending = new StringBuilder(128);
+
+    // what the marker resolved to once it's closed, null if there is no such module
+    private String _mountPoint;
+
+    // the data being written, either chars or a string
+    private char[] _chars;
+    private String _string;
+
+    private char[] _char = new char[1];
+
     @Override
     public void write(char[] buf, int off, int len) {
-        _logger.trace("write char[] {} {}", off, len);
         if (off >= buf.length) return;
         len = Math.min(off + len, buf.length) - off;
-        for (int i = off; i < off + len; i++) {
-            char c = buf[i];
-            _logger.trace("'{}'", c);
-            
+        _chars = buf;
+        try {
+            rewrite(off, off + len);
+        } finally {
+            _chars = null;
+        }
+    }
+
+    @Override
+    public void write(String s, int off, int len) {
+        if (off >= s.length()) return;
+        len = Math.min(off + len, s.length()) - off;
+        _string = s;
+        try {
+            rewrite(off, off + len);
+        } finally {
+            _string = null;
+        }
+    }
+
+    /*
+     * this is the same state machine that a char by char scan would go thru,
+     * except that the START state jumps straight to the next '['. Note that
+     * the char that breaks a marker is consumed, just like the one that
+     * follows a closed marker is only looked at to see whether it's a slash.
+     */
+    private void rewrite(int off, int end) {
+        int flushed = off; // everything before this has been passed along (or belongs to the marker)
+        int i = off;
+        while (i < end) {
             if (_state == State.START) {
-                if (c == '[') {
-                    _logger.trace("start -> opening");
-                    _state = State.OPENING;
-                    _start = i;
-                }
-            } else if (_state == State.OPENING) {
-                if (c == '#') {
-                    _logger.trace("opening -> opened");
-                    _state = State.OPENED;
-                } else {
-                    _logger.trace("opening -> start");
-                    _state = State.START;
+                i = indexOf('[', i, end);
+                if (i < 0) {
+                    break;
                 }
+                _state = State.OPENING;
+                _start = i++;
+                continue;
+            }
+
+            char c = charAt(i);
+            if (_state == State.OPENING) {
+                _state = (c == '#') ? State.OPENED : State.START;
             } else if (_state == State.OPENED) {
                 if (c == '#') {
-                    _logger.trace("opened -> closing");
                     _state = State.CLOSING;
                 } else if (!Character.isJavaIdentifierPart(c)) {
-                    _logger.trace("opened -> start");
                     _state = State.START;
                 }
             } else if (_state == State.CLOSING) {
                 if (c == ']') {
-                    _logger.trace("closing -> closed");
                     _state = State.CLOSED;
+                    _mountPoint = resolve(off, i);
                 } else {
-                    _logger.trace("closing -> start");
                     _state = State.START;
                 }
-            } else if (_state == State.CLOSED) {
-                _end = i - 1;
-                if (c == '/') {
-                    _logger.trace("closed -> slashed");
-                    _state = State.SLASHED;
+            } else { // closed, and this is the char that follows the marker
+                _state = State.START;
+                if (_mountPoint != null) {
+                    if (_start >= 0) {
+                        pass(flushed, _start);
+                    }
+                    _pending.setLength(0);
+                    writeLink(_mountPoint, c == '/');
+                    _mountPoint = null;
+                    flushed = i;
                 } else {
-                    _logger.trace("closed -> unslashed");
-                    _state = State.UNSLASHED;
+                    _logger.info("module NOT found");
+                    reset();
                 }
-                break;
+                continue; // the char that follows the marker is processed as usual
             }
+
+            if (_state == State.START) {
+                reset();
+            }
+            i++;
         }
-        
+
         if (_state == State.START) {
-            _logger.trace("pass along");
-            int l = _buffer.length();
-            if (l > 0) {
-                char[] b = new char[l];
-                _buffer.getChars(0, l, b, 0);
-                _writer.write(b, 0, l);
-                _buffer.setLength(0);
-            }
-            _writer.write(buf, off, len); // just pass the data along, since there is nothing to rewrite
-        } else if (_state == State.SLASHED || _state == State.UNSLASHED) {
-            boolean slashed = (_state == State.SLASHED);
-            _state = State.START;
-            _logger.trace("closed");
-            if (_buffer.length() > 0) {
-                int l = _buffer.length();
-                _logger.trace("with leftovers: {}", l);
-                _buffer.append(buf,off,len);
-                len = _buffer.length();
-                buf = new char[len];
-                off = 0;
-                _end += l;
-                _buffer.getChars(0, len, buf, 0);
-                _buffer.setLength(0);
-            }
-            _logger.trace("{} {}", _start, _end);
-            String name = new String(buf, _start + 2, _end - _start - 3);
-            _logger.trace("name: {}", name);
-            ButterflyModule module = _module.getModule(name);
-        	MountPoint mountPoint = (module == null) ? null : module.getMountPoint();
-            if (mountPoint != null) {
-                _logger.trace("module found");
-                _writer.write(buf, off, _start - off);
-                if (this._baseURL != null) _writer.write(_baseURL, 0, _baseURL.length);
-                char[] mountPointChars = mountPoint.getMountPoint().toCharArray();
-                _writer.write(mountPointChars, 0, slashed ? mountPointChars.length - 1 : mountPointChars.length);
-                write(buf, _end+1, off + len - _end - 1);
-            } else {
-                _logger.info("module NOT found");
-                _writer.write(buf, off, _end - off); // write the part processed so far
-                write(buf, _end, len - (_end - off)); // and continue processing recursively
-            }
+            pass(flushed, end); // just pass the data along, since there is nothing to rewrite
+        } else if (_start >= 0) {
+            pass(flushed, _start);
+            append(_start, end);
+            _start = -1;
         } else { // in case we are in an intermediate state, we can only store and wait for more data
-            if (_buffer.length() == 0) {
-                _start -= off; // adjust the starting point (only the first time)  
+            append(off, end);
+        }
+    }
+
+    /**
+     * Writes the link that replaces a marker: the mount point of the module
+     * (without its trailing slash if the marker is followed by one) prefixed
+     * by the base URL, if any.
+     */
+    protected void writeLink(String mountPoint, boolean slashed) {
+        if (_baseURL != null) _writer.write(_baseURL);
+        _writer.write(mountPoint, 0, slashed ? mountPoint.length() - 1 : mountPoint.length());
+    }
+
+    /*
+     * give up on the current marker, whatever came with earlier writes is passed along as is
+     */
+    private void reset() {
+        if (_start < 0 && _pending.length() > 0) {
+            _writer.append(_pending);
+            _pending.setLength(0);
+        }
+        _start = -1;
+    }
+
+    /*
+     * look up the mount point of the module named by the marker that ends with the ']' at the given position
+     */
+    private String resolve(int off, int bracket) {
+        String name;
+        if (_start >= 0) {
+            name = substring(_start + 2, bracket - 1);
+        } else {
+            int l = _pending.length();
+            append(off, bracket + 1);
+            name = _pending.substring(2, _pending.length() - 2);
+            _pending.setLength(l);
+        }
+        ButterflyModule module = _module.getModule(name);
+        MountPoint mountPoint = (module == null) ? null : module.getMountPoint();
+        return (mountPoint == null) ? null : mountPoint.getMountPoint();
+    }
+
+    private int indexOf(char c, int from, int end) {
+        if (_string != null) {
+            int i = _string.indexOf(c, from);
+            return (i < end) ? i : -1;
+        }
+        char[] chars = _chars;
+        for (int i = from; i < end; i++) {
+            if (chars[i] == c) return i;
+        }
+        return -1;
+    }
+
+    private char charAt(int i) {
+        return (_string != null) ? _string.charAt(i) : _chars[i];
+    }
+
+    private String substring(int from, int to) {
+        return (_string != null) ? _string.substring(from, to) : new String(_chars, from, to - from);
+    }
+
+    private void pass(int from, int to) {
+        if (to > from) {
+            if (_string != null) {
+                _writer.write(_string, from, to - from);
+            } else {
+                _writer.write(_chars, from, to - from);
             }
-            _buffer.append(buf,off,len); 
-            _logger.trace("saved leftovers: {} {}", _buffer.length(), _start);
         }
     }
 
-    // ---- all the write methods converge to the one above -----
-    
+    private void append(int from, int to) {
+        if (_string != null) {
+            _pending.append(_string, from, to);
+        } else {
+            _pending.append(_chars, from, to - from);
+        }
+    }
+
+    /*
+     * a marker that ends the output has nothing after it, so it's not followed by a slash either
+     */
+    @Override
+    public void close() {
+        if (_state == State.CLOSED && _mountPoint != null) {
+            _pending.setLength(0);
+            writeLink(_mountPoint, false);
+        } else {
+            reset();
+        }
+        _state = State.START;
+        _mountPoint = null;
+        super.close();
+    }
+
+    // ---- all the write methods converge to the ones above -----
+
     @Override
     public void write(char[] buf) {
-        _logger.trace("write char[]");
         write(buf, 0, buf.length);
     }
 
     @Override
     public void write(String s) {
-        _logger.trace("write string");
-        write(s.toCharArray(), 0, s.length());
+        write(s, 0, s.length());
     }
 
-    @Override
-    public void write(String s, int off, int len) {
-        _logger.trace("write string off len");
-        write(s.toCharArray(), off, len);
-    }
-    
     @Override
     public void write(int c) {
-        _logger.trace("write int");
-        write(new char[] { (char) c }, 0, 1);
+        _char[0] = (char) c;
+        write(_char, 0, 1);
     }
 }
@@ -0,0 +1,89 @@
+package edu.mit.simile.butterfly;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class holds a text in which the "[#name#]" markers have already been
+ * replaced by the mount points of the modules they name, as a list of literal
+ * segments with a slot for the base URL between each pair of them. Writing
+ * it out only takes concatenating the segments, there is nothing left to scan.
+ *
+ * Since the mount points are resolved when the template is compiled, a
+ * template is only good for as long as the wiring of the modules doesn't change.
+ */
+public class LinkTemplate {
+
+    private final String[] _segments;
+    private final int _length;
+
+    private LinkTemplate(List<String> segments) {
+        _segments = segments.toArray(new String[segments.size()]);
+        int length = 0;
+        for (String segment : _segments) {
+            length += segment.length();
+        }
+        _length = length;
+    }
+
+    /**
+     * Resolves the markers in the given text the way a LinkRewriter created
+     * for the given module would, leaving slots where the base URL goes.
+     */
+    public static LinkTemplate compile(ButterflyModule module, String text) {
+        final List<String> segments = new ArrayList<String>();
+        final StringWriter buffer = new StringWriter(text.length());
+        LinkRewriter rewriter = new LinkRewriter(new PrintWriter(buffer), module) {
+            @Override
+            protected void writeLink(String mountPoint, boolean slashed) {
+                segments.add(buffer.toString());
+                buffer.getBuffer().setLength(0);
+                super.writeLink(mountPoint, slashed);
+            }
+        };
+        rewriter.write(text);
+        rewriter.close();
+        segments.add(buffer.toString());
+        return new LinkTemplate(segments);
+    }
+
+    /**
+     * Writes the text out with the given base URL (if any) in front of every link.
+     */
+    public void write(Writer writer, String baseURL) throws IOException {
+        int last = _segments.length - 1;
+        for (int i = 0; i < last; i++) {
+            writer.write(_segments[i]);
+            if (baseURL != null) writer.write(baseURL);
+        }
+        writer.write(_segments[last]);
+    }
+
+    /**
+     * Returns the number of links in the text.
+     */
+    public int getLinkCount() {
+        return _segments.length - 1;
+    }
+
+    /**
+     * Returns the length of the text, not counting the base URLs.
+     */
+    public int getLength() {
+        return _length;
+    }
+
+    public String toString(String baseURL) {
+        StringWriter writer = new StringWriter(_length + ((baseURL == null) ? 0 : getLinkCount() * baseURL.length()));
+        try {
+            write(writer, baseURL);
+        } catch (IOException e) {
+            // string writers don't throw
+        }
+        return writer.toString();
+    }
+}
@@ -0,0 +1,171 @@
+package edu.mit.simile.butterfly;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class holds the bytes that text resources turned into the last time
+ * they were sent (after link rewriting and encoding), so that sending them again
+ * doesn't need to go thru all that work. The cache is bounded by the total size
+ * of the entries it holds and evicts the least recently used ones first.
+ *
+ * Entries carry the last modification time of the resource they were rendered
+ * from and are ignored (and replaced) when it no longer matches. They can also
+ * hold the gzipped variant of their content, which counts against the budget too.
+ */
+public class RenderCache {
+
+    /**
+     * A rendered resource.
+     */
+    public static class Entry {
+
+        final byte[] content;
+        final long lastModified;
+        volatile byte[] compressed;
+
+        public Entry(byte[] content, long lastModified) {
+            this.content = content;
+            this.lastModified = lastModified;
+        }
+
+        public byte[] getContent() {
+            return content;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public byte[] getCompressed() {
+            return compressed;
+        }
+
+        long size() {
+            byte[] c = compressed;
+            return content.length + ((c == null) ? 0 : c.length);
+        }
+    }
+
+    private final long _capacity;
+    private final long _maxEntrySize;
+    private long _size;
+
+    private final LinkedHashMap<String,Entry> _entries = new LinkedHashMap<String,Entry>(64, 0.75f, true);
+
+    private final AtomicLong _hits = new AtomicLong();
+    private final AtomicLong _misses = new AtomicLong();
+    private final AtomicLong _evictions = new AtomicLong();
+
+    /**
+     * Creates a cache that holds at most the given number of bytes. Resources
+     * that render to more than an eighth of that are never cached.
+     */
+    public RenderCache(long capacity) {
+        _capacity = capacity;
+        _maxEntrySize = capacity / 8;
+    }
+
+    /**
+     * Returns the entry for the given key if it was rendered from a resource
+     * with the given last modification time, null otherwise.
+     */
+    public Entry get(String key, long lastModified) {
+        Entry entry;
+        synchronized (this) {
+            entry = _entries.get(key);
+        }
+        if (entry != null && entry.lastModified == lastModified) {
+            _hits.incrementAndGet();
+            return entry;
+        } else {
+            _misses.incrementAndGet();
+            return null;
+        }
+    }
+
+    public void put(String key, Entry entry) {
+        long size = entry.size();
+        if (size > _maxEntrySize) {
+            return;
+        }
+        synchronized (this) {
+            Entry previous = _entries.put(key, entry);
+            if (previous != null) {
+                _size -= previous.size();
+            }
+            _size += size;
+            evict();
+        }
+    }
+
+    /**
+     * Attaches the compressed variant to the given entry. If the entry is
+     * (still) in the cache under the given key, the variant is accounted for.
+     */
+    public void setCompressed(String key, Entry entry, byte[] compressed) {
+        synchronized (this) {
+            if (entry.compressed != null) {
+                return;
+            }
+            if (_entries.get(key) != entry) {
+                entry.compressed = compressed;
+            } else if (entry.size() + compressed.length > _maxEntrySize) {
+                _entries.remove(key);
+                _size -= entry.size();
+                entry.compressed = compressed;
+            } else {
+                entry.compressed = compressed;
+                _size += compressed.length;
+                evict();
+            }
+        }
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String,Entry>> i = _entries.entrySet().iterator();
+        while (_size > _capacity && i.hasNext()) {
+            Map.Entry<String,Entry> eldest = i.next();
+            _size -= eldest.getValue().size();
+            i.remove();
+            _evictions.incrementAndGet();
+        }
+    }
+
+    public synchronized void clear() {
+        _entries.clear();
+        _size = 0;
+    }
+
+    public long getCapacity() {
+        return _capacity;
+    }
+
+    public synchronized long getSize() {
+        return _size;
+    }
+
+    public synchronized int getCount() {
+        return _entries.size();
+    }
+
+    public long getHits() {
+        return _hits.get();
+    }
+
+    public long getMisses() {
+        return _misses.get();
+    }
+
+    public long getEvictions() {
+        return _evictions.get();
+    }
+
+    @Override
+    public String toString() {
+        return "render cache: " + getCount() + " entries, " + getSize() + "/" + _capacity + " bytes, " +
+            getHits() + " hits, " + getMisses() + " misses, " + getEvictions() + " evictions";
+    }
+}
@@ -1,6 +1,10 @@
 package edu.mit.simile.butterfly;
 
+import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -14,7 +18,9 @@ import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
 
 import org.apache.velocity.VelocityContext;
+import org.mozilla.javascript.Context;
 import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.Undefined;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.w3c.dom.Document;
@@ -36,6 +42,10 @@ public class ScriptableButterfly extends ButterflyScriptableObject {
         
     boolean _responded = false;
 
+    // how long and how deeply nested the JSON that gets parsed can be
+    long _jsonMaxSize = 10 * 1024 * 1024;
+    int _jsonMaxDepth = 256;
+
     public static String getName() {
         return "Butterfly";
     }
@@ -44,6 +54,14 @@ public class ScriptableButterfly extends ButterflyScriptableObject {
         return getName();
     }
     
+    public void init(ButterflyModule module) {
+        super.init(module);
+        if (_properties != null) {
+            _jsonMaxSize = _properties.getLong(Butterfly.JSON_MAX_SIZE, _jsonMaxSize);
+            _jsonMaxDepth = _properties.getInt(Butterfly.JSON_MAX_DEPTH, _jsonMaxDepth);
+        }
+    }
+
     public boolean didRespond() {
         return _responded;
     }
@@ -165,6 +183,30 @@ public class ScriptableButterfly extends ButterflyScriptableObject {
         _logger.trace("< jsFunction_sendString");
     }
     
+    public void jsFunction_sendJSON(Object request, Object response, Object object, boolean wrap) throws Exception {
+        _logger.trace("> jsFunction_sendJSON");
+        HttpServletRequest req = (HttpServletRequest) unwrap(request);
+        HttpServletResponse res = (HttpServletResponse) unwrap(response);
+        sendJSON(req, res, (wrap) ? "<textarea>" : "", object, (wrap) ? "</textarea>" : "");
+        responded();
+        _logger.trace("< jsFunction_sendJSON");
+    }
+
+    public void jsFunction_sendJSONP(Object request, Object response, Object object, String callback) throws Exception {
+        _logger.trace("> jsFunction_sendJSONP");
+        HttpServletRequest req = (HttpServletRequest) unwrap(request);
+        HttpServletResponse res = (HttpServletResponse) unwrap(response);
+        sendJSON(req, res, callback + "(", object, ");");
+        responded();
+        _logger.trace("< jsFunction_sendJSONP");
+    }
+
+    public String jsFunction_toJSONString(Object object) throws Exception {
+        StringWriter writer = new StringWriter();
+        new JSONWriter(writer, getParentScope()).write(object);
+        return writer.toString();
+    }
+
     public void jsFunction_sendError(Object request, Object response, int code, String str) throws Exception {
         _logger.trace("> jsFunction_sendError");
         HttpServletRequest req = (HttpServletRequest) unwrap(request);
@@ -174,11 +216,31 @@ public class ScriptableButterfly extends ButterflyScriptableObject {
         _logger.trace("< jsFunction_sendError");
     }
     
+    public Object jsFunction_getJSON(Object request) throws Exception {
+        HttpServletRequest req = (HttpServletRequest) unwrap(request);
+        Reader reader = req.getReader();
+        try {
+            return parseJSON(reader);
+        } finally {
+            reader.close();
+        }
+    }
+
+    public Object jsFunction_parseJSON(String str) throws Exception {
+        return parseJSON(new StringReader(str));
+    }
+
     public String jsFunction_getString(Object request) throws Exception {
         HttpServletRequest req = (HttpServletRequest) unwrap(request);
         return _module.getString(req);
     }
 
+    public String jsFunction_getBundleURL(Object request, String name) throws Exception {
+        HttpServletRequest req = (HttpServletRequest) unwrap(request);
+        String path = (_module instanceof ButterflyModuleImpl) ? ((ButterflyModuleImpl) _module).getBundle(req, name) : null;
+        return (path == null) ? null : _module.getContextPath(req, false) + _module.getMountPoint().getMountPoint() + path;
+    }
+
     public MountPoint jsFunction_getMountPoint() throws Exception {
         return _module.getMountPoint();
     }
@@ -201,6 +263,38 @@ public class ScriptableButterfly extends ButterflyScriptableObject {
     private void responded() {
         this._responded = true;
     }
+
+    /*
+     * JSON that can't be parsed is logged and turns into undefined
+     */
+    private Object parseJSON(Reader reader) throws Exception {
+        try {
+            return new JSONParser(reader, Context.getCurrentContext(), getParentScope(), _jsonMaxSize, _jsonMaxDepth).parse();
+        } catch (IOException e) {
+            _jsLogger.info(e.getMessage());
+            return Undefined.instance;
+        }
+    }
+
+    /*
+     * JSON goes out as UTF-8 plain text, streamed straight to the response unless
+     * the module sends strings its own way, in which case it goes thru sendString()
+     */
+    private void sendJSON(HttpServletRequest request, HttpServletResponse response, String prefix, Object object, String suffix) throws Exception {
+        PrintWriter writer = (_module instanceof ButterflyModuleImpl) ? ((ButterflyModuleImpl) _module).getStringWriter(response, "UTF-8", "text/plain") : null;
+        if (writer != null) {
+            writer.write(prefix);
+            new JSONWriter(writer, getParentScope()).write(object);
+            writer.write(suffix);
+            writer.close();
+        } else {
+            StringWriter buffer = new StringWriter();
+            buffer.write(prefix);
+            new JSONWriter(buffer, getParentScope()).write(object);
+            buffer.write(suffix);
+            _module.sendString(request, response, buffer.toString(), "UTF-8", "text/plain");
+        }
+    }
     
     public static Map<String,String> jsToMap(Object o) {
         Map<String,String> map = new HashMap<String,String>();
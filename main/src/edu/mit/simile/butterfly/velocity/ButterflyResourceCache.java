@@ -0,0 +1,164 @@
+package edu.mit.simile.butterfly.velocity;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.velocity.Template;
+import org.apache.velocity.runtime.RuntimeServices;
+import org.apache.velocity.runtime.resource.Resource;
+import org.apache.velocity.runtime.resource.ResourceCache;
+import org.apache.velocity.runtime.resource.loader.ResourceLoader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.mit.simile.butterfly.ButterflyModule;
+import edu.mit.simile.butterfly.ButterflyModuleImpl;
+
+/**
+ * This is the velocity cache of parsed templates. Unlike the default one it
+ * keeps the templates of each module apart (the same name can resolve to
+ * different files in different modules, velocity only knows about names),
+ * it doesn't evict templates, it can be told to drop the templates whose
+ * files changed (which is how templates get reloaded when velocity is told
+ * to never check them itself) and it counts how often templates are found
+ * in it and how often they had to be parsed. When the runtime has a template
+ * compiler, templates get compiled on their way into the cache.
+ */
+public class ButterflyResourceCache implements ResourceCache {
+
+    final static private Logger _logger = LoggerFactory.getLogger("butterfly.resource_cache");
+
+    private final Map<Key,Resource> _cache = new ConcurrentHashMap<Key,Resource>();
+
+    private final AtomicLong _hits = new AtomicLong();
+    private final AtomicLong _reparses = new AtomicLong();
+
+    private TemplateCompiler _compiler;
+    private RuntimeServices _runtime;
+
+    /*
+     * velocity's own key (the type and the name of the template) along with
+     * the module that the template was loaded for
+     */
+    static class Key {
+        final ButterflyModule module;
+        final Object key;
+
+        Key(ButterflyModule module, Object key) {
+            this.module = module;
+            this.key = key;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return (o instanceof Key) && ((Key) o).module == module && ((Key) o).key.equals(key);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(module) + key.hashCode();
+        }
+    }
+
+    public void initialize(RuntimeServices rs) {
+        _runtime = rs;
+        Object o = rs.getApplicationAttribute("engine");
+        if (o instanceof ButterflyVelocityEngine) {
+            ((ButterflyVelocityEngine) o).setCache(this);
+            _compiler = ((ButterflyVelocityEngine) o).getCompiler();
+        }
+        o = rs.getApplicationAttribute("module");
+        if (o instanceof ButterflyModuleImpl) {
+            ((ButterflyModuleImpl) o).setTemplateCache(this);
+        }
+    }
+
+    public Resource get(Object key) {
+        Resource resource = _cache.get(new Key(ButterflyResourceLoader.getBoundModule(), key));
+        if (resource != null) {
+            _hits.incrementAndGet();
+        }
+        return resource;
+    }
+
+    public Resource put(Object key, Resource value) {
+        _reparses.incrementAndGet();
+        if (_compiler != null && value instanceof Template) {
+            _compiler.compile((Template) value, _runtime);
+        }
+        return _cache.put(new Key(ButterflyResourceLoader.getBoundModule(), key), value);
+    }
+
+    public Resource remove(Object key) {
+        return _cache.remove(new Key(ButterflyResourceLoader.getBoundModule(), key));
+    }
+
+    @SuppressWarnings("rawtypes")
+    public Iterator enumerateKeys() {
+        return _cache.keySet().iterator();
+    }
+
+    /**
+     * Drops all the templates of the given module, for when the way they resolve
+     * might have changed.
+     */
+    public void clear(ButterflyModule module) {
+        for (Key key : _cache.keySet()) {
+            if (key.module == module) {
+                _cache.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Drops the templates of the given module whose files changed (or went away)
+     * since they were parsed, returning how many were dropped.
+     */
+    public int invalidateModified(ButterflyModule module) {
+        int count = 0;
+        ButterflyModule previous = ButterflyResourceLoader.bind(module);
+        try {
+            for (Map.Entry<Key,Resource> e : _cache.entrySet()) {
+                if (e.getKey().module != module) {
+                    continue;
+                }
+                Resource resource = e.getValue();
+                ResourceLoader loader = resource.getResourceLoader();
+                if (loader != null && loader.getLastModified(resource) != resource.getLastModified()) {
+                    if (_cache.remove(e.getKey(), resource)) {
+                        _logger.debug("Template {} of module {} changed", resource.getName(), module.getName());
+                        count++;
+                    }
+                }
+            }
+        } finally {
+            ButterflyResourceLoader.bind(previous);
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of times a template was found already parsed.
+     */
+    public long getHits() {
+        return _hits.get();
+    }
+
+    /**
+     * Returns the number of times a template was parsed, for the first time or again.
+     */
+    public long getReparses() {
+        return _reparses.get();
+    }
+
+    public int size() {
+        return _cache.size();
+    }
+
+    @Override
+    public String toString() {
+        return "template cache: " + size() + " templates, " + getHits() + " hits, " + getReparses() + " reparses";
+    }
+}
@@ -3,6 +3,8 @@ package edu.mit.simile.butterfly.velocity;
 import java.io.InputStream;
 import java.net.URL;
 import java.net.URLConnection;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.apache.commons.collections.ExtendedProperties;
 import org.slf4j.Logger;
@@ -18,26 +20,55 @@ import edu.mit.simile.butterfly.ButterflyModule;
  * This is a velocity resource loader that is aware of the hierarchy of modules
  * and therefore is capable of dealing with concepts such as template overloading and inheritance
  * based on the wiring of Butterfly modules.
+ *
+ * The loader resolves templates in the module bound to the current thread, or
+ * in the module that owns the velocity engine if the engine isn't shared. A name
+ * like "[#module#]/macros.vm" resolves in the named module instead.
  */
 public class ButterflyResourceLoader extends FileResourceLoader {
 
     final static private Logger _logger = LoggerFactory.getLogger("butterfly.resource_loader");
     
+    static final Pattern MODULE_PATTERN = Pattern.compile("^\\[#([^#\\]]+)#\\]/?(.*)$");
+    
+    private static final ThreadLocal<ButterflyModule> _bound = new ThreadLocal<ButterflyModule>();
+    
     private ButterflyModule _module;
     
+    /**
+     * Binds the given module to the current thread, so that the templates it 
+     * loads get resolved in it, and returns the module that was bound before 
+     * (to be bound again once done).
+     */
+    public static ButterflyModule bind(ButterflyModule module) {
+        ButterflyModule previous = _bound.get();
+        if (module == null) {
+            _bound.remove();
+        } else {
+            _bound.set(module);
+        }
+        return previous;
+    }
+    
+    public static ButterflyModule getBoundModule() {
+        return _bound.get();
+    }
+    
     @Override
     public void commonInit(RuntimeServices rs, ExtendedProperties configuration) {
         super.commonInit(rs, configuration);
         Object o = rs.getApplicationAttribute("module");
         if (o != null) {
             _module = (ButterflyModule) o;
-        } else {
-            throw new RuntimeException("The ButterflyResourceLoader couldn't find an instance to the module!");
         }
     }
 
+    /*
+     * This is called concurrently by all the threads that load templates: it takes
+     * no lock since resolving goes thru the module's (concurrent) index of resources.
+     */
     @Override
-    public synchronized InputStream getResourceStream(String name) throws ResourceNotFoundException {
+    public InputStream getResourceStream(String name) throws ResourceNotFoundException {
         InputStream result = null;
         
         if (name == null || name.length() == 0) {
@@ -77,7 +108,24 @@ public class ButterflyResourceLoader extends FileResourceLoader {
     }
     
     private URL getResource(String name) {
-        return _module.getResource(name);
+        ButterflyModule module = _bound.get();
+        if (module == null) {
+            module = _module;
+        }
+        if (module == null) {
+            throw new ResourceNotFoundException("No module to find '" + name + "' in");
+        }
+        Matcher m = MODULE_PATTERN.matcher(name);
+        if (m.matches()) {
+            if (!m.group(1).equals(module.getName())) {
+                module = module.getModule(m.group(1));
+                if (module == null) {
+                    return null;
+                }
+            }
+            name = m.group(2);
+        }
+        return module.getResource(name);
     }
 }
 
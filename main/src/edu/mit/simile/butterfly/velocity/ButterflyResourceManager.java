@@ -0,0 +1,34 @@
+package edu.mit.simile.butterfly.velocity;
+
+import org.apache.velocity.runtime.resource.Resource;
+import org.apache.velocity.runtime.resource.ResourceManagerImpl;
+
+import edu.mit.simile.butterfly.ButterflyModule;
+
+/**
+ * This is the velocity resource manager of the runtime that all the modules
+ * share. It names templates after the module they are loaded for, so that
+ * "index.vt" of a module becomes "[#module#]/index.vt" as far as velocity is
+ * concerned, templates pulled in thru #parse included. Velocity keeps the
+ * inline macros of a template by the name of the template, and without this
+ * the templates of different modules that happen to have the same name would
+ * replace each other's macros.
+ */
+public class ButterflyResourceManager extends ResourceManagerImpl {
+
+    @Override
+    public Resource getResource(String name, int type, String encoding) throws Exception {
+        return super.getResource(qualify(name), type, encoding);
+    }
+
+    /*
+     * prefix the given name with the module bound to the current thread, unless it names one already
+     */
+    private static String qualify(String name) {
+        ButterflyModule module = ButterflyResourceLoader.getBoundModule();
+        if (module == null || name == null || name.startsWith("[#")) {
+            return name;
+        }
+        return "[#" + module.getName() + "#]/" + name;
+    }
+}
@@ -0,0 +1,90 @@
+package edu.mit.simile.butterfly.velocity;
+
+import java.util.Properties;
+
+import org.apache.velocity.app.VelocityEngine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This class holds the velocity runtime that all the modules share. The
+ * runtime is only created when the first template gets rendered, so that
+ * nothing is spent on templating if no module ever uses it.
+ *
+ * Since the runtime is shared, it can't tell by itself which module a
+ * template belongs to: modules bind themselves to the current thread thru
+ * ButterflyResourceLoader.bind() while they render templates.
+ */
+public class ButterflyVelocityEngine {
+
+    final static private Logger _logger = LoggerFactory.getLogger("butterfly.velocity");
+
+    private final Properties _properties;
+    private final TemplateCompiler _compiler;
+
+    private volatile VelocityEngine _engine;
+    private volatile ButterflyResourceCache _cache;
+
+    public ButterflyVelocityEngine(Properties properties) {
+        this(properties, null);
+    }
+
+    /**
+     * Creates a runtime whose templates get compiled by the given compiler
+     * as they are parsed.
+     */
+    public ButterflyVelocityEngine(Properties properties, TemplateCompiler compiler) {
+        _properties = properties;
+        _compiler = compiler;
+    }
+
+    /**
+     * Returns the shared velocity runtime, creating it if it wasn't before.
+     */
+    public VelocityEngine getEngine() {
+        VelocityEngine engine = _engine;
+        if (engine == null) {
+            synchronized (this) {
+                engine = _engine;
+                if (engine == null) {
+                    _logger.debug("Creating the template engine");
+                    engine = new VelocityEngine();
+                    engine.setApplicationAttribute("engine", this); // this is how the cache finds us
+                    try {
+                        engine.init(_properties);
+                    } catch (Exception e) {
+                        throw new RuntimeException("Failed to initialize the template engine", e);
+                    }
+                    _engine = engine;
+                }
+            }
+        }
+        return engine;
+    }
+
+    /**
+     * Returns the properties that the runtime is (or will be) created with.
+     */
+    public Properties getProperties() {
+        return _properties;
+    }
+
+    /**
+     * Returns the cache of parsed templates (and its statistics), or null if
+     * the runtime wasn't created yet.
+     */
+    public ButterflyResourceCache getCache() {
+        return _cache;
+    }
+
+    /**
+     * Returns the template compiler, or null if templates are interpreted.
+     */
+    public TemplateCompiler getCompiler() {
+        return _compiler;
+    }
+
+    void setCache(ButterflyResourceCache cache) {
+        _cache = cache;
+    }
+}
@@ -2,6 +2,7 @@ package edu.mit.simile.butterfly.velocity;
 
 import java.io.IOException;
 import java.io.Writer;
+import java.util.regex.Matcher;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -50,7 +51,9 @@ public class Super extends InputBase {
         // to look for an overloaded resource first. This is hacky, I know, but
         // unfortunately I see no other way of signaling such behavior to the 
         // resource loader via Velocity's own conduits.
-        template = "@@" + template + "@@";
+        // The module that the template was loaded for stays in front, as in "[#module#]/@@page.vt@@".
+        Matcher m = ButterflyResourceLoader.MODULE_PATTERN.matcher(template);
+        template = (m.matches()) ? "[#" + m.group(1) + "#]/@@" + m.group(2) + "@@" : "@@" + template + "@@";
         
         // see if we have exceeded the configured depth.
         // If it isn't configured, put a stop at 20 just in case.
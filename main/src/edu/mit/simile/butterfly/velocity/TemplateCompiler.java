@@ -0,0 +1,402 @@
+package edu.mit.simile.butterfly.velocity;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.velocity.Template;
+import org.apache.velocity.app.event.EventCartridge;
+import org.apache.velocity.context.InternalContextAdapter;
+import org.apache.velocity.runtime.Renderable;
+import org.apache.velocity.runtime.RuntimeServices;
+import org.apache.velocity.runtime.parser.Token;
+import org.apache.velocity.runtime.parser.node.ASTBlock;
+import org.apache.velocity.runtime.parser.node.ASTDirective;
+import org.apache.velocity.runtime.parser.node.ASTElseIfStatement;
+import org.apache.velocity.runtime.parser.node.ASTElseStatement;
+import org.apache.velocity.runtime.parser.node.ASTIfStatement;
+import org.apache.velocity.runtime.parser.node.ASTReference;
+import org.apache.velocity.runtime.parser.node.ASTText;
+import org.apache.velocity.runtime.parser.node.Node;
+import org.apache.velocity.runtime.parser.node.NodeUtils;
+import org.apache.velocity.runtime.parser.node.SimpleNode;
+import org.mozilla.classfile.ByteCode;
+import org.mozilla.classfile.ClassFileWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This class compiles parsed velocity templates into java classes, so that
+ * rendering them doesn't walk their syntax tree anymore.
+ *
+ * The body of a template (and the body of each #foreach in it) becomes the
+ * render() method of a generated class: text is written as string constants,
+ * #if/#elseif/#else become branches of the method and plain references (as in
+ * $name, $!name or ${name}) are written straight out of the context as long as
+ * they have a value that takes nothing but its string to render. Everything
+ * else (references with properties or methods, #set, #foreach itself, #parse,
+ * #super, macros...) is still rendered by its velocity node, called directly
+ * from the generated code. The compiled body replaces the original one in
+ * the tree, which is how templates rendered thru #parse and #super end up
+ * compiled too.
+ *
+ * A template that can't be compiled keeps being interpreted.
+ */
+public class TemplateCompiler {
+
+    final static private Logger _logger = LoggerFactory.getLogger("butterfly.velocity.compiler");
+
+    private static final String PACKAGE = "edu.mit.simile.butterfly.velocity.compiled.";
+    private static final String BLOCK = Block.class.getName();
+    private static final String NODE = Node.class.getName();
+    private static final String CONTEXT = InternalContextAdapter.class.getName();
+    private static final String RENDER_SIGNATURE = "(L" + slashed(CONTEXT) + ";Ljava/io/Writer;[L" + slashed(NODE) + ";)V";
+
+    private static final AtomicInteger _classes = new AtomicInteger();
+
+    private final ClassLoader _parent;
+
+    private final AtomicLong _compiled = new AtomicLong();
+    private final AtomicLong _fallbacks = new AtomicLong();
+
+    /**
+     * The generated classes are loaded thru class loaders that have the given one as parent.
+     */
+    public TemplateCompiler(ClassLoader parent) {
+        _parent = (parent != null) ? parent : TemplateCompiler.class.getClassLoader();
+    }
+
+    /**
+     * The base class of the generated classes: renders a block of nodes, given
+     * the nodes that it leaves to velocity.
+     */
+    public static abstract class Block {
+        public abstract void render(InternalContextAdapter context, Writer writer, Node[] nodes) throws IOException;
+
+        /**
+         * Writes the value of the given variable the way velocity renders a plain
+         * reference to it, unless rendering it takes more than writing its string
+         * (no value, a Renderable value, event handlers...), in which case nothing
+         * is written and false is returned so that velocity renders the reference.
+         */
+        public static boolean write(InternalContextAdapter context, Writer writer, String name) throws IOException {
+            if (context.getEventCartridge() != null) {
+                return false;
+            }
+            Object value = context.get(name);
+            if (value == null || value instanceof Renderable) {
+                return false;
+            }
+            String string = value.toString();
+            if (string == null) {
+                return false;
+            }
+            if (context.getAllowRendering()) {
+                writer.write(string);
+            }
+            return true;
+        }
+    }
+
+    /*
+     * a node that takes the place of a compiled block in the syntax tree
+     */
+    static class CompiledNode extends SimpleNode {
+
+        final SimpleNode original;
+        final Block block;
+        final Node[] nodes;
+
+        CompiledNode(SimpleNode original, Block block, Node[] nodes) {
+            super(original.getType());
+            this.original = original;
+            this.block = block;
+            this.nodes = nodes;
+        }
+
+        @Override
+        public boolean render(InternalContextAdapter context, Writer writer) throws IOException {
+            block.render(context, writer, nodes);
+            return true;
+        }
+
+        @Override
+        public int jjtGetNumChildren() {
+            return original.jjtGetNumChildren();
+        }
+
+        @Override
+        public Node jjtGetChild(int i) {
+            return original.jjtGetChild(i);
+        }
+
+        @Override
+        public Token getFirstToken() {
+            return original.getFirstToken();
+        }
+
+        @Override
+        public Token getLastToken() {
+            return original.getLastToken();
+        }
+
+        @Override
+        public int getLine() {
+            return original.getLine();
+        }
+
+        @Override
+        public int getColumn() {
+            return original.getColumn();
+        }
+    }
+
+    /*
+     * the class loader of the classes of a template, which goes away with the template
+     */
+    private static class Loader extends ClassLoader {
+        Loader(ClassLoader parent) {
+            super(parent);
+        }
+
+        Class<?> define(String name, byte[] bytes) {
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+
+    /*
+     * what compiling a template takes: the loader of its classes, whether references
+     * can be written without velocity (they can't when the application has reference
+     * insertion handlers) and the #foreach bodies to swap for their compiled versions
+     * once the whole template compiled (the tree is left untouched if anything fails)
+     */
+    private static class Compilation {
+        final Loader loader;
+        final boolean references;
+        final List<Node> parents = new ArrayList<Node>();
+        final List<CompiledNode> bodies = new ArrayList<CompiledNode>();
+
+        Compilation(Loader loader, boolean references) {
+            this.loader = loader;
+            this.references = references;
+        }
+
+        void replaceLater(Node parent, CompiledNode body) {
+            parents.add(parent);
+            bodies.add(body);
+        }
+
+        void replace() {
+            for (int i = 0; i < parents.size(); i++) {
+                parents.get(i).jjtAddChild(bodies.get(i), 3);
+            }
+        }
+    }
+
+    /**
+     * Compiles the given (freshly parsed) template of the given runtime in place,
+     * returning whether it could be compiled.
+     */
+    public boolean compile(Template template, RuntimeServices runtime) {
+        Object data = template.getData();
+        if (!(data instanceof SimpleNode) || data instanceof CompiledNode) {
+            return false;
+        }
+        try {
+            EventCartridge cartridge = (runtime != null) ? runtime.getApplicationEventCartridge() : null;
+            boolean references = cartridge == null || cartridge.getReferenceInsertionEventHandlers() == null;
+            Compilation compilation = new Compilation(new Loader(_parent), references);
+            CompiledNode compiled = compileBlock((SimpleNode) data, compilation);
+            compilation.replace();
+            template.setData(compiled);
+            _compiled.incrementAndGet();
+            return true;
+        } catch (Exception e) {
+            return fallback(template, e);
+        } catch (ClassFormatError e) {
+            return fallback(template, e);
+        }
+    }
+
+    private boolean fallback(Template template, Throwable e) {
+        _logger.debug("Could not compile template " + template.getName() + ", it will be interpreted", e);
+        _fallbacks.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Returns the number of templates compiled so far.
+     */
+    public long getCompiled() {
+        return _compiled.get();
+    }
+
+    /**
+     * Returns the number of templates that couldn't be compiled and are interpreted.
+     */
+    public long getFallbacks() {
+        return _fallbacks.get();
+    }
+
+    @Override
+    public String toString() {
+        return "template compiler: " + getCompiled() + " compiled, " + getFallbacks() + " fallbacks";
+    }
+
+    // ----------------------------------------------------------------------------
+
+    private CompiledNode compileBlock(SimpleNode block, Compilation compilation) throws Exception {
+        String name = PACKAGE + "Block" + _classes.incrementAndGet();
+        ClassFileWriter cfw = new ClassFileWriter(name, BLOCK, null);
+        cfw.setFlags((short) (ClassFileWriter.ACC_PUBLIC | ClassFileWriter.ACC_FINAL | ClassFileWriter.ACC_SUPER));
+
+        cfw.startMethod("<init>", "()V", ClassFileWriter.ACC_PUBLIC);
+        cfw.add(ByteCode.ALOAD_0);
+        cfw.addInvoke(ByteCode.INVOKESPECIAL, BLOCK, "<init>", "()V");
+        cfw.add(ByteCode.RETURN);
+        cfw.stopMethod((short) 1);
+
+        // locals: 0 this, 1 context, 2 writer, 3 nodes
+        List<Node> nodes = new ArrayList<Node>();
+        cfw.startMethod("render", RENDER_SIGNATURE, ClassFileWriter.ACC_PUBLIC);
+        addChildren(cfw, block, nodes, compilation);
+        cfw.add(ByteCode.RETURN);
+        cfw.stopMethod((short) 4);
+
+        Class<?> c = compilation.loader.define(name, cfw.toByteArray());
+        return new CompiledNode(block, (Block) c.getDeclaredConstructor().newInstance(), nodes.toArray(new Node[nodes.size()]));
+    }
+
+    private void addChildren(ClassFileWriter cfw, Node parent, List<Node> nodes, Compilation compilation) throws Exception {
+        for (int i = 0; i < parent.jjtGetNumChildren(); i++) {
+            addNode(cfw, parent.jjtGetChild(i), nodes, compilation);
+        }
+    }
+
+    private void addNode(ClassFileWriter cfw, Node node, List<Node> nodes, Compilation compilation) throws Exception {
+        if (node instanceof ASTText) {
+            // if (context.getAllowRendering()) writer.write("...");
+            int skip = cfw.acquireLabel();
+            cfw.add(ByteCode.ALOAD_1);
+            cfw.addInvoke(ByteCode.INVOKEINTERFACE, CONTEXT, "getAllowRendering", "()Z");
+            cfw.add(ByteCode.IFEQ, skip);
+            cfw.add(ByteCode.ALOAD_2);
+            cfw.addPush(NodeUtils.tokenLiteral(node.getFirstToken()));
+            cfw.addInvoke(ByteCode.INVOKEVIRTUAL, "java.io.Writer", "write", "(Ljava/lang/String;)V");
+            cfw.markLabel(skip);
+        } else if (node instanceof ASTIfStatement) {
+            // if (nodes[a].evaluate(context)) { ... } else if (nodes[b].evaluate(context)) { ... } else { ... }
+            int end = cfw.acquireLabel();
+            addBranch(cfw, node.jjtGetChild(0), node.jjtGetChild(1), end, nodes, compilation);
+            for (int i = 2; i < node.jjtGetNumChildren(); i++) {
+                Node branch = node.jjtGetChild(i);
+                if (branch instanceof ASTElseIfStatement) {
+                    addBranch(cfw, branch.jjtGetChild(0), branch.jjtGetChild(1), end, nodes, compilation);
+                } else if (branch instanceof ASTElseStatement) {
+                    addChildren(cfw, branch.jjtGetChild(0), nodes, compilation);
+                } else {
+                    throw new IllegalArgumentException("Unexpected branch in #if: " + branch);
+                }
+            }
+            cfw.markLabel(end);
+        } else if (node instanceof ASTBlock) {
+            // all a block does is render its children
+            addChildren(cfw, node, nodes, compilation);
+        } else if (compilation.references && isPlainReference(node)) {
+            // if (!Block.write(context, writer, "name")) nodes[i].render(context, writer);
+            int done = cfw.acquireLabel();
+            cfw.add(ByteCode.ALOAD_1);
+            cfw.add(ByteCode.ALOAD_2);
+            cfw.addPush(((ASTReference) node).getRootString());
+            cfw.addInvoke(ByteCode.INVOKESTATIC, BLOCK, "write", "(L" + slashed(CONTEXT) + ";Ljava/io/Writer;Ljava/lang/String;)Z");
+            cfw.add(ByteCode.IFNE, done);
+            addRender(cfw, node, nodes);
+            cfw.markLabel(done);
+        } else {
+            if (node instanceof ASTDirective && "foreach".equals(((ASTDirective) node).getDirectiveName())
+                    && node.jjtGetNumChildren() == 4 && node.jjtGetChild(3) instanceof SimpleNode
+                    && !(node.jjtGetChild(3) instanceof CompiledNode)) {
+                // velocity still iterates, over a compiled body
+                compilation.replaceLater(node, compileBlock((SimpleNode) node.jjtGetChild(3), compilation));
+            }
+            addRender(cfw, node, nodes);
+        }
+    }
+
+    /*
+     * nodes[i].render(context, writer);
+     */
+    private static void addRender(ClassFileWriter cfw, Node node, List<Node> nodes) {
+        addNodeRef(cfw, node, nodes);
+        cfw.add(ByteCode.ALOAD_1);
+        cfw.add(ByteCode.ALOAD_2);
+        cfw.addInvoke(ByteCode.INVOKEINTERFACE, NODE, "render", "(L" + slashed(CONTEXT) + ";Ljava/io/Writer;)Z");
+        cfw.add(ByteCode.POP);
+    }
+
+    /*
+     * tell whether the given node is a reference to a variable alone, written
+     * without escapes, which velocity renders as the string value of the variable
+     * (velocity strips the escapes and what precedes the $ off the literal as it
+     * initializes the node, and only keeps them in fields of its own)
+     */
+    private static boolean isPlainReference(Node node) throws Exception {
+        if (!(node instanceof ASTReference) || node.jjtGetNumChildren() > 0) {
+            return false;
+        }
+        String name = ((ASTReference) node).getRootString();
+        String literal = ((ASTReference) node).literal();
+        if (name == null || !(literal.equals("$" + name) || literal.equals("$!" + name) ||
+                literal.equals("${" + name + "}") || literal.equals("$!{" + name + "}"))) {
+            return false;
+        }
+        if (ESCAPED == null || ESC_PREFIX == null || MORE_PREFIX == null) {
+            return false;
+        }
+        return Boolean.FALSE.equals(ESCAPED.get(node)) && "".equals(ESC_PREFIX.get(node)) && "".equals(MORE_PREFIX.get(node));
+    }
+
+    private static final Field ESCAPED = field("escaped");
+    private static final Field ESC_PREFIX = field("escPrefix");
+    private static final Field MORE_PREFIX = field("morePrefix");
+
+    private static Field field(String name) {
+        try {
+            Field field = ASTReference.class.getDeclaredField(name);
+            field.setAccessible(true);
+            return field;
+        } catch (Exception e) {
+            _logger.warn("References will be left to velocity, " + name + " can't be read", e);
+            return null;
+        }
+    }
+
+    private void addBranch(ClassFileWriter cfw, Node condition, Node body, int end, List<Node> nodes, Compilation compilation) throws Exception {
+        int next = cfw.acquireLabel();
+        addNodeRef(cfw, condition, nodes);
+        cfw.add(ByteCode.ALOAD_1);
+        cfw.addInvoke(ByteCode.INVOKEINTERFACE, NODE, "evaluate", "(L" + slashed(CONTEXT) + ";)Z");
+        cfw.add(ByteCode.IFEQ, next);
+        addChildren(cfw, body, nodes, compilation);
+        cfw.add(ByteCode.GOTO, end);
+        cfw.markLabel(next);
+    }
+
+    /*
+     * push nodes[i], i being the index of the given node in the array
+     */
+    private static void addNodeRef(ClassFileWriter cfw, Node node, List<Node> nodes) {
+        nodes.add(node);
+        cfw.add(ByteCode.ALOAD_3);
+        cfw.addPush(nodes.size() - 1);
+        cfw.add(ByteCode.AALOAD);
+    }
+
+    private static String slashed(String className) {
+        return className.replace('.', '/');
+    }
+}
@@ -0,0 +1,110 @@
+package edu.mit.simile.butterfly.velocity;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.mit.simile.butterfly.ButterflyModule;
+import edu.mit.simile.butterfly.ButterflyModuleImpl;
+
+/**
+ * This class parses all the templates of the given modules (including those
+ * they inherit from the modules they extend) and their macro libraries into
+ * the template cache, so that the first requests don't have to. Templates are
+ * parsed in parallel, and the whole thing stops at the first template that
+ * doesn't parse.
+ */
+public class TemplatePrecompiler extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    final static private Logger _logger = LoggerFactory.getLogger("butterfly.velocity");
+
+    private final Collection<ButterflyModule> _modules;
+    private final AtomicBoolean _failed = new AtomicBoolean();
+
+    public TemplatePrecompiler(Collection<ButterflyModule> modules) {
+        _modules = modules;
+    }
+
+    /**
+     * Parses the templates of the given modules on a pool of as many threads as
+     * there are processors, throwing the first parse error.
+     */
+    public static void precompile(Collection<ButterflyModule> modules) {
+        ForkJoinPool pool = new ForkJoinPool();
+        try {
+            pool.invoke(new TemplatePrecompiler(modules));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Override
+    protected void compute() {
+        List<ModuleTask> tasks = new ArrayList<ModuleTask>();
+        for (ButterflyModule m : _modules) {
+            if (m instanceof ButterflyModuleImpl && m.getTemplateEngine() != null) {
+                tasks.add(new ModuleTask((ButterflyModuleImpl) m));
+            }
+        }
+        invokeAll(tasks);
+    }
+
+    private class ModuleTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final ButterflyModuleImpl _module;
+
+        ModuleTask(ButterflyModuleImpl module) {
+            _module = module;
+        }
+
+        @Override
+        protected void compute() {
+            long start = System.currentTimeMillis();
+            List<TemplateTask> tasks = new ArrayList<TemplateTask>();
+            for (String template : _module.findTemplates()) {
+                tasks.add(new TemplateTask(_module, template));
+            }
+            for (String library : _module.getMacroLibraries()) {
+                tasks.add(new TemplateTask(_module, library));
+            }
+            invokeAll(tasks);
+            _logger.info("Precompiled {} templates of module {} in {} ms", new Object[] { tasks.size(), _module.getName(), System.currentTimeMillis() - start });
+        }
+    }
+
+    private class TemplateTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final ButterflyModuleImpl _module;
+        private final String _template;
+
+        TemplateTask(ButterflyModuleImpl module, String template) {
+            _module = module;
+            _template = template;
+        }
+
+        @Override
+        protected void compute() {
+            if (_failed.get()) {
+                return;
+            }
+            try {
+                _module.getTemplate(_template, null);
+            } catch (Exception e) {
+                _failed.set(true);
+                throw new RuntimeException("Failed to parse template " + _template + " of module " + _module.getName(), e);
+            }
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package edu.mit.simile.butterfly.tests;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.collections.ExtendedProperties;
+import org.apache.commons.io.FileUtils;
+import org.slf4j.LoggerFactory;
+import org.testng.Assert;
+import org.testng.annotations.BeforeTest;
+import org.testng.annotations.Test;
+
+import edu.mit.simile.butterfly.ButterflyModule;
+import edu.mit.simile.butterfly.ButterflyModuleImpl;
+
+public class BundleTests extends ModuleTest {
+
+    private ButterflyModuleImpl _lib;
+    private ButterflyModuleImpl _app;
+
+    @BeforeTest
+    public void setup() throws Exception {
+        logger = LoggerFactory.getLogger(this.getClass());
+        logger.trace("> setup()");
+
+        createDir("bundles");
+
+        File lib = new File(_dir, "lib");
+        FileUtils.writeStringToFile(new File(lib, "lib.js"), "var lib = 1;\n", "UTF-8");
+        FileUtils.writeStringToFile(new File(lib, "css/lib.css"), "a { background: url(img/a.png); }\n", "UTF-8");
+
+        File app = new File(_dir, "app");
+        FileUtils.writeStringToFile(new File(app, "app.js"), "  var app = '[#lib#]/lib.js';  \n\n", "UTF-8");
+        FileUtils.writeStringToFile(new File(app, "style.css"), "/* c */ b  {  color : red ; background: url('../x.png') }", "UTF-8");
+
+        Map<String,ButterflyModule> modules = new HashMap<String,ButterflyModule>();
+        _lib = createModule(new ButterflyModuleImpl(), "lib", lib, modules, new ExtendedProperties(), null);
+
+        ExtendedProperties properties = new ExtendedProperties();
+        properties.setProperty(ButterflyModuleImpl.BUNDLE + ".all.js", "[#lib#]/lib.js, app.js");
+        properties.setProperty(ButterflyModuleImpl.BUNDLE + ".all.css", "[#lib#]/css/lib.css, style.css, missing.css");
+        properties.setProperty(ButterflyModuleImpl.BUNDLES_MINIFY, "true");
+        _app = createModule(new ButterflyModuleImpl(), "app", app, modules, properties, null);
+
+        logger.trace("< setup()");
+    }
+
+    @Test
+    public void testBundles() throws Exception {
+        String path = _app.getBundle(request("/ctx"), "all.js");
+        Assert.assertTrue(path.matches("bundles/all\\.[0-9a-f]{12}\\.js"), path);
+        Assert.assertNull(_app.getBundle(request("/ctx"), "none.js"));
+
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        Assert.assertEquals(send(path, response, null), "var lib = 1;\n\n;\nvar app = '/ctx/lib/lib.js';\n\n;\n");
+        verify(response).setHeader("Cache-Control", "public, max-age=31536000, immutable");
+        verify(response).setHeader("ETag", "\"" + hash(path) + "\"");
+        verify(response).setHeader("Content-Type", "text/javascript;charset=UTF-8");
+
+        // relative URLs keep pointing where they did, missing files are left out
+        Assert.assertEquals(send(_app.getBundle(request("/ctx"), "all.css"), mock(HttpServletResponse.class), null),
+            "a{background: url(../../lib/css/img/a.png);}\nb{color : red;background: url('../../x.png')}\n");
+
+        response = mock(HttpServletResponse.class);
+        send(path, response, "\"" + hash(path) + "\"");
+        verify(response).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        verify(response, never()).getOutputStream();
+    }
+
+    @Test(dependsOnMethods = "testBundles")
+    public void testContextPaths() throws Exception {
+        // the links of a bundle depend on where it's served from, and so do its path and ETag
+        String path = _app.getBundle(request("/ctx"), "all.js");
+        String other = _app.getBundle(request("/other"), "all.js");
+        Assert.assertNotEquals(other, path);
+
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        Assert.assertEquals(send(other, "/other", response, null), "var lib = 1;\n\n;\nvar app = '/other/lib/lib.js';\n\n;\n");
+        verify(response).setHeader("Cache-Control", "public, max-age=31536000, immutable");
+        verify(response).setHeader("ETag", "\"" + hash(other) + "\"");
+
+        // a path made for another context path isn't cached forever
+        response = mock(HttpServletResponse.class);
+        Assert.assertTrue(send(path, "/other", response, null).contains("'/other/lib/lib.js'"));
+        verify(response).setHeader("Cache-Control", "no-cache");
+
+        response = mock(HttpServletResponse.class);
+        send(path, "/other", response, "\"" + hash(path) + "\"");
+        verify(response, never()).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    }
+
+    @Test(dependsOnMethods = "testBundles")
+    public void testRebuild() throws Exception {
+        String path = _app.getBundle(request("/ctx"), "all.js");
+        Assert.assertEquals(_app.getBundle(request("/ctx"), "all.js"), path);
+
+        File f = new File(_dir, "lib/lib.js");
+        FileUtils.writeStringToFile(f, "var lib = 22;\n", "UTF-8");
+        f.setLastModified(f.lastModified() + 2000);
+        Thread.sleep(1100); // metadata is only checked once a second
+
+        String newPath = _app.getBundle(request("/ctx"), "all.js");
+        Assert.assertNotEquals(newPath, path);
+
+        // an old URL gets the current content, but it's not cached forever
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        Assert.assertTrue(send(path, response, null).startsWith("var lib = 22;"));
+        verify(response).setHeader("Cache-Control", "no-cache");
+        verify(response).setHeader("ETag", "\"" + hash(newPath) + "\"");
+    }
+
+    private String send(String path, HttpServletResponse response, String ifNoneMatch) throws Exception {
+        return send(path, "/ctx", response, ifNoneMatch);
+    }
+
+    private String send(String path, String contextPath, HttpServletResponse response, String ifNoneMatch) throws Exception {
+        HttpServletRequest request = request(contextPath);
+        when(request.getMethod()).thenReturn("GET");
+        when(request.getDateHeader("If-Modified-Since")).thenReturn(-1L);
+        when(request.getHeader("If-None-Match")).thenReturn(ifNoneMatch);
+        ResourceTests.BufferServletOutputStream output = new ResourceTests.BufferServletOutputStream();
+        when(response.getOutputStream()).thenReturn(output);
+        Assert.assertTrue(_app.process(path, request, response));
+        return output.buffer.toString("UTF-8");
+    }
+
+    private static HttpServletRequest request(String contextPath) {
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        when(request.getContextPath()).thenReturn(contextPath);
+        return request;
+    }
+
+    private static String hash(String path) {
+        String[] parts = path.split("\\.");
+        return parts[parts.length - 2];
+    }
+}
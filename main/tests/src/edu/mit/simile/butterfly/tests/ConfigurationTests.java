@@ -0,0 +1,103 @@
+package edu.mit.simile.butterfly.tests;
+
+import static org.mockito.Mockito.mock;
+
+import java.io.File;
+
+import javax.servlet.ServletConfig;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.LoggerFactory;
+import org.testng.Assert;
+import org.testng.annotations.AfterTest;
+import org.testng.annotations.BeforeTest;
+import org.testng.annotations.Test;
+
+import edu.mit.simile.butterfly.Butterfly;
+import edu.mit.simile.butterfly.ButterflyClassLoader;
+import edu.mit.simile.butterfly.ButterflyModule;
+import edu.mit.simile.butterfly.ButterflyMounter;
+
+public class ConfigurationTests extends Butterfly {
+
+    private static final long serialVersionUID = 1L;
+
+    transient org.slf4j.Logger logger;
+
+    private transient File _dir;
+
+    @BeforeTest
+    public void setup() throws Exception {
+        logger = LoggerFactory.getLogger(this.getClass());
+        logger.trace("> setup()");
+
+        _dir = File.createTempFile("butterfly", "context");
+        _dir.delete();
+        _contextDir = _dir;
+        _webInfDir = new File(_dir, "WEB-INF");
+        _propertiesFile = new File(_webInfDir, "butterfly.properties");
+        _config = mock(ServletConfig.class);
+        _classLoader = new ButterflyClassLoader(this.getClass().getClassLoader());
+
+        FileUtils.writeStringToFile(_propertiesFile, "butterfly.modules.path = modules\n", "UTF-8");
+        FileUtils.writeStringToFile(new File(_webInfDir, "velocity.properties"), "", "UTF-8");
+        module("main", "");
+        module("a", "");
+        wirings("main = /\na = /a\n");
+
+        logger.trace("< setup()");
+    }
+
+    @AfterTest
+    public void teardown() throws Exception {
+        FileUtils.deleteDirectory(_dir);
+    }
+
+    private void module(String name, String properties) throws Exception {
+        FileUtils.writeStringToFile(new File(_dir, "modules/" + name + "/MOD-INF/module.properties"), properties, "UTF-8");
+    }
+
+    private void wirings(String wirings) throws Exception {
+        FileUtils.writeStringToFile(new File(_webInfDir, "modules.properties"), wirings, "UTF-8");
+    }
+
+    @Test
+    public void testReconfigure() throws Exception {
+        reconfigure();
+        Configuration configuration = _configuration;
+        ButterflyMounter mounter = _mounter;
+        Assert.assertNotNull(configuration);
+        Assert.assertNull(_configurationException);
+        ButterflyModule a = _modulesByName.get("a");
+        Assert.assertSame(mounter.getModule("/a/page", null), a);
+
+        // two modules on the same mount point
+        wirings("main = /\na = /\n");
+        reconfigure();
+        assertUnchanged(configuration, mounter, a);
+
+        // a module that extends one that doesn't exist
+        wirings("main = /\na = /a\n");
+        module("b", "extends = missing\n");
+        reconfigure();
+        assertUnchanged(configuration, mounter, a);
+
+        FileUtils.deleteDirectory(new File(_dir, "modules/b"));
+        module("c", "");
+        wirings("main = /\na = /b\nc = /c\n");
+        reconfigure();
+        Assert.assertNotSame(_configuration, configuration);
+        Assert.assertNull(_configurationException);
+        Assert.assertNotSame(_modulesByName.get("a"), a);
+        Assert.assertSame(_mounter.getModule("/b/page", null), _modulesByName.get("a"));
+        Assert.assertSame(_mounter.getModule("/c/page", null), _modulesByName.get("c"));
+    }
+
+    private void assertUnchanged(Configuration configuration, ButterflyMounter mounter, ButterflyModule a) {
+        Assert.assertSame(_configuration, configuration);
+        Assert.assertSame(_mounter, mounter);
+        Assert.assertSame(_modulesByName.get("a"), a);
+        Assert.assertNull(_modulesByName.get("b"));
+        Assert.assertNull(_configurationException);
+    }
+}
@@ -0,0 +1,348 @@
+package edu.mit.simile.butterfly.tests;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.management.ClassLoadingMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.collections.ExtendedProperties;
+import org.apache.commons.io.output.NullWriter;
+import org.apache.commons.lang.StringUtils;
+import org.mozilla.javascript.ClassCache;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.ContextFactory;
+import org.mozilla.javascript.Script;
+import org.slf4j.LoggerFactory;
+import org.testng.Assert;
+import org.testng.annotations.BeforeTest;
+import org.testng.annotations.Test;
+
+import edu.mit.simile.butterfly.Butterfly;
+import edu.mit.simile.butterfly.ButterflyModuleImpl;
+import edu.mit.simile.butterfly.ButterflyScope;
+import edu.mit.simile.butterfly.ButterflyScriptableObject;
+import edu.mit.simile.butterfly.ButterflyWrapFactory;
+import edu.mit.simile.butterfly.MountPoint;
+
+public class ControllerTests extends Butterfly {
+
+    private static final long serialVersionUID = 1L;
+
+    transient org.slf4j.Logger logger;
+
+    private transient TestModule _module;
+    private transient TestModule _unsharedModule;
+
+    @BeforeTest
+    public void setup() throws Exception {
+        logger = LoggerFactory.getLogger(this.getClass());
+        logger.trace("> setup()");
+
+        if (!ContextFactory.hasExplicitGlobal()) {
+            ContextFactory.initGlobal(new ButterflyContextFactory(true));
+        }
+
+        Context context = ContextFactory.getGlobal().enterContext();
+        try {
+            _classCache = ButterflyScope.createSharedClassCache(context);
+        } finally {
+            Context.exit();
+        }
+        Assert.assertNotNull(_classCache);
+
+        _module = createModule(new TestModule(), "controller", true);
+        _unsharedModule = createModule(new StringModule(), "unshared", false);
+
+        logger.trace("< setup()");
+    }
+
+    private TestModule createModule(TestModule module, String name, boolean shared) throws Exception {
+        ExtendedProperties properties = new ExtendedProperties();
+        properties.setProperty(SHARED_SCOPE, Boolean.toString(shared));
+        properties.setProperty(JSON_MAX_SIZE, "100000");
+        properties.setProperty(JSON_MAX_DEPTH, "8");
+
+        module.setName(name);
+        module.setMountPoint(new MountPoint("/" + name + "/"));
+        module.setModules(_modulesByName);
+        module.setProperties(properties);
+        module.setModuleProperties(new ExtendedProperties());
+        module.setClassCache(_classCache);
+        module.setScriptable(new Greeter());
+        module.setImplementation("greeter");
+        _modulesByName.put(name, module);
+
+        setScript(module, ButterflyModuleImpl.class.getResource("Butterfly.js"));
+        setScript(module, this.getClass().getResource("controller.js"));
+
+        module.init(null);
+        return module;
+    }
+
+    private void setScript(TestModule module, URL url) throws Exception {
+        Assert.assertNotNull(url);
+
+        Context context = ContextFactory.getGlobal().enterContext();
+        Reader reader = new InputStreamReader(url.openStream(), "UTF-8");
+        try {
+            Script script = context.compileReader(reader, url.toString(), 1, null);
+            module.setScript(url, script);
+        } finally {
+            reader.close();
+            Context.exit();
+        }
+    }
+
+    @Test
+    public void sharedScopeSeesInitState() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            Assert.assertEquals(call("hello"), "hello controller");
+        }
+    }
+
+    @Test
+    public void scriptChangesRebuildTheirModuleOnly() throws Exception {
+        TestModule a = createModule(new TestModule(), "a", true);
+        TestModule b = createModule(new TestModule(), "b", true);
+        Assert.assertEquals(call(a, "hello"), "hello a");
+        Assert.assertEquals(call(b, "hello"), "hello b");
+        Object scopeA = a.sharedScope();
+        Object scopeB = b.sharedScope();
+
+        setScript(a, this.getClass().getResource("controller.js"));
+
+        // the rebuilt scope ran init() again
+        Assert.assertEquals(call(a, "hello"), "hello a");
+        Assert.assertEquals(call(b, "hello"), "hello b");
+        Assert.assertNotSame(a.sharedScope(), scopeA);
+        Assert.assertSame(b.sharedScope(), scopeB);
+    }
+
+    @Test
+    public void requestStateDoesNotLeak() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            Assert.assertEquals(call("count"), "1");
+        }
+    }
+
+    @Test
+    public void fallThru() throws Exception {
+        Assert.assertNull(call("nothing"));
+    }
+
+    @Test
+    public void noClassesLoadedPerRequest() throws Exception {
+        noClassesLoadedPerRequest(_module, 100000);
+        noClassesLoadedPerRequest(_unsharedModule, 1000);
+    }
+
+    private void noClassesLoadedPerRequest(TestModule module, int requests) throws Exception {
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        Writer writer = new NullWriter();
+        when(response.getWriter()).thenReturn(new PrintWriter(writer));
+
+        // warm up so that everything that is loaded lazily is already there
+        for (int i = 0; i < 100; i++) {
+            Assert.assertTrue(module.processScript("count", request, response));
+        }
+
+        ClassLoadingMXBean classLoading = ManagementFactory.getClassLoadingMXBean();
+        long before = classLoading.getTotalLoadedClassCount();
+        for (int i = 0; i < requests; i++) {
+            Assert.assertTrue(module.processScript("count", request, response));
+        }
+        long loaded = classLoading.getTotalLoadedClassCount() - before;
+        logger.debug("{} classes loaded while serving {} requests", loaded, requests);
+        Assert.assertTrue(loaded < 10, loaded + " classes were loaded while serving " + requests + " requests");
+    }
+
+    @Test
+    public void classCacheIsShared() throws Exception {
+        Context context = ContextFactory.getGlobal().enterContext();
+        try {
+            ButterflyScope a = new ButterflyScope(_unsharedModule, context, _classCache);
+            ButterflyScope b = new ButterflyScope(_unsharedModule, context, _classCache);
+            Assert.assertSame(ClassCache.get(a), _classCache);
+            Assert.assertSame(ClassCache.get(b), _classCache);
+
+            ButterflyWrapFactory wrapFactory = new ButterflyWrapFactory();
+            context.setWrapFactory(wrapFactory);
+            Context.javaToJS(new ArrayList<String>(), a);
+            Context.javaToJS(new ArrayList<String>(), b);
+            Assert.assertEquals(wrapFactory.getMisses(), 1);
+            Assert.assertEquals(wrapFactory.getHits(), 1);
+        } finally {
+            Context.exit();
+        }
+    }
+
+    @Test
+    public void staticResourcesBypassController() throws Exception {
+        ExtendedProperties moduleProperties = new ExtendedProperties();
+        moduleProperties.setProperty(ButterflyModuleImpl.STATIC, "images/**, *.css");
+        moduleProperties.setProperty(ButterflyModuleImpl.MIME_TYPE + ".woff", "font/woff");
+        _module.setModuleProperties(moduleProperties);
+        try {
+            HttpServletRequest request = mock(HttpServletRequest.class);
+            HttpServletResponse response = mock(HttpServletResponse.class);
+
+            _module.scriptCalls = 0;
+            Assert.assertTrue(_module.process("images/icons/logo.png", request, response));
+            Assert.assertTrue(_module.process("style.css", request, response));
+            Assert.assertEquals(_module.scriptCalls, 0);
+
+            Assert.assertTrue(_module.process("fonts/style.css", request, response));
+            Assert.assertTrue(_module.process("fonts/icons.woff", request, response));
+            Assert.assertFalse(_module.process("fonts/icons.ttf", request, response));
+            Assert.assertEquals(_module.scriptCalls, 3);
+            Assert.assertEquals(_module.mimeType("fonts/icons.woff"), "font/woff");
+            Assert.assertEquals(_module.mimeType("images/icons/logo.png"), "image/png");
+            Assert.assertNull(_module.mimeType("images.png/logo"));
+
+            // MOD-INF is never served as a static resource
+            Assert.assertTrue(_module.process("MOD-INF/controller.js", request, response));
+            Assert.assertNull(_module.mimeType("MOD-INF/controller.js"));
+        } finally {
+            _module.setModuleProperties(new ExtendedProperties());
+        }
+    }
+
+    @Test
+    public void scriptablesAreDefinedOnce() throws Exception {
+        for (TestModule module : new TestModule[] { _module, _unsharedModule }) {
+            for (int i = 0; i < 3; i++) {
+                Assert.assertEquals(call(module, "greet"), "HI YOU FROM " + module.getName().toUpperCase() + " true");
+            }
+        }
+        ButterflyScope.Definitions definitions = _unsharedModule.definitions();
+        Assert.assertNotNull(definitions);
+        call(_unsharedModule, "greet");
+        Assert.assertSame(_unsharedModule.definitions(), definitions);
+    }
+
+    @Test
+    public void json() throws Exception {
+        // this is what the javascript serializer used to write
+        String json = "{\"a\":1,\"b\":-1.5e-7,\"c\":\"q\\\"\\\\\\n\\u0001\u00e9/\",\"d\":[1,null,true,null],\"e\":{\"f\":{},\"g\":[]}," +
+            "\"i\":\"[x]\",\"j\":[\"z\"],\"7\":false,\"k\":null,\"l\":[\"s\",\"t\"]}";
+        for (TestModule module : new TestModule[] { _module, _unsharedModule }) {
+            // streamed, unless the module overrides sendString()
+            boolean strings = module instanceof StringModule;
+            Assert.assertEquals(call(module, "json"), "<textarea>" + json + "</textarea>");
+            Assert.assertEquals(module.string, strings ? "<textarea>" + json + "</textarea>" : null);
+            Assert.assertEquals(call(module, "jsonp"), "callback([" + json + ",\"s\"]);");
+            Assert.assertEquals(module.string, strings ? "callback([" + json + ",\"s\"]);" : null);
+            Assert.assertEquals(call(module, "tojson"), "7sb[1,\"a\"]");
+        }
+    }
+
+    @Test
+    public void parseJSON() throws Exception {
+        String json = "{\"a\":[1,-2500.5,true,false,null,\"\\\"\\u00e9\\n\"],\"0\":{\"b\":{}},\"c\":[]}";
+        for (TestModule module : new TestModule[] { _module, _unsharedModule }) {
+            Assert.assertEquals(call(module, "parse", " " + json.replace(",", " ,\n") + "\n"), json.replace("\\u00e9", "\u00e9"));
+            Assert.assertEquals(call(module, "parse", "\"" + StringUtils.repeat("x", 5000) + "\""), StringUtils.repeat("x", 5000));
+            Assert.assertEquals(call(module, "parse", "12.5"), "12.5");
+            Assert.assertEquals(call(module, "parse", StringUtils.repeat("[", 8) + StringUtils.repeat("]", 8)), "[[[[[[[[]]]]]]]]");
+
+            Assert.assertEquals(call(module, "parse", StringUtils.repeat("[", 9) + StringUtils.repeat("]", 9)), "undefined");
+            Assert.assertEquals(call(module, "parse", "\"" + StringUtils.repeat("x", 100000) + "\""), "undefined");
+            Assert.assertEquals(call(module, "parse", "{\"a\":1,}"), "undefined");
+            Assert.assertEquals(call(module, "parse", "[1] [2]"), "undefined");
+            Assert.assertEquals(call(module, "parse", "java.lang.System.exit(0)"), "undefined");
+            Assert.assertEquals(call(module, "parse", ""), "undefined");
+        }
+    }
+
+    private String call(String path) throws Exception {
+        return call(_module, path);
+    }
+
+    private String call(TestModule module, String path) throws Exception {
+        return call(module, path, "");
+    }
+
+    private String call(TestModule module, String path, String body) throws Exception {
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        when(request.getReader()).thenReturn(new BufferedReader(new StringReader(body)));
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        StringWriter writer = new StringWriter();
+        when(response.getWriter()).thenReturn(new PrintWriter(writer));
+        if (module.processScript(path, request, response)) {
+            return writer.toString();
+        } else {
+            return null;
+        }
+    }
+
+    static class TestModule extends ButterflyModuleImpl {
+        
+        int scriptCalls;
+        Map<String,String> sent = new HashMap<String,String>();
+        String string;
+        
+        protected boolean processScript(String path, HttpServletRequest request, HttpServletResponse response) throws Exception {
+            scriptCalls++;
+            return super.processScript(path, request, response);
+        }
+        
+        public boolean sendText(HttpServletRequest request, HttpServletResponse response, String path, String encoding, String mimeType, boolean absolute) throws Exception {
+            sent.put(path, mimeType);
+            return true;
+        }
+        
+        public boolean sendBinary(HttpServletRequest request, HttpServletResponse response, String path, String mimeType) throws Exception {
+            sent.put(path, mimeType);
+            return true;
+        }
+        
+        String mimeType(String path) {
+            return sent.get(path);
+        }
+
+        ButterflyScope.Definitions definitions() {
+            return _definitions;
+        }
+
+        Object sharedScope() {
+            return _sharedScope;
+        }
+    }
+
+    static class StringModule extends TestModule {
+
+        public boolean sendString(HttpServletRequest request, HttpServletResponse response, String str, String encoding, String mimeType) throws Exception {
+            string = str;
+            return super.sendString(request, response, str, encoding, mimeType);
+        }
+    }
+
+    public static class Greeter extends ButterflyScriptableObject {
+
+        private static final long serialVersionUID = 1L;
+
+        public String getClassName() {
+            return "Greeter";
+        }
+
+        public String jsFunction_greet(String who) {
+            return "hi " + who + " from " + _module.getName();
+        }
+    }
+}
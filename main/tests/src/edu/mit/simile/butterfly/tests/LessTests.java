@@ -0,0 +1,154 @@
+package edu.mit.simile.butterfly.tests;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.collections.ExtendedProperties;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.LoggerFactory;
+import org.testng.Assert;
+import org.testng.annotations.BeforeTest;
+import org.testng.annotations.Test;
+
+import com.metaweb.lessen.Utilities;
+import com.metaweb.lessen.tokenizers.CondensingTokenizer;
+import com.metaweb.lessen.tokenizers.IndentingTokenizer;
+import com.metaweb.lessen.tokenizers.Tokenizer;
+
+import edu.mit.simile.butterfly.ButterflyModule;
+import edu.mit.simile.butterfly.ButterflyModuleImpl;
+import edu.mit.simile.butterfly.LessStylesheet;
+import edu.mit.simile.butterfly.LinkRewriter;
+
+public class LessTests extends ModuleTest {
+
+    private ButterflyModuleImpl _module;
+    private Map<String,ButterflyModule> _modules;
+
+    @BeforeTest
+    public void setup() throws Exception {
+        logger = LoggerFactory.getLogger(this.getClass());
+        logger.trace("> setup()");
+
+        createDir("less");
+
+        FileUtils.writeStringToFile(new File(_dir, "common/base.less"), "@color: red;\n.box(@w: 1px) { border: @w solid @color; }\n", "UTF-8");
+        FileUtils.writeStringToFile(new File(_dir, "styles/main.less"),
+            "@import-less url(\"../common/base.less\");\n.$module-panel { color: @color; .box(2px); background: url([#app#]/a.png); }\n", "UTF-8");
+        FileUtils.writeStringToFile(new File(_dir, "styles/other.less"), "@size: 12pt;\np { font-size: @size; }\n", "UTF-8");
+        FileUtils.writeStringToFile(new File(_dir, "MOD-INF/hidden.less"), "p { }\n", "UTF-8");
+        FileUtils.writeStringToFile(new File(_dir, "styles/big.less"), StringUtils.repeat(".a { background: url([#app#]/a.png); }\n", 100), "UTF-8");
+
+        _modules = new HashMap<String,ButterflyModule>();
+        _module = createModule(new ButterflyModuleImpl(), "app", _dir, _modules, new ExtendedProperties(), null);
+
+        logger.trace("< setup()");
+    }
+
+    @Test
+    public void testCompile() throws Exception {
+        String css = send("styles/main.less");
+        Assert.assertTrue(css.contains("color: red"), css);
+        Assert.assertTrue(css.contains(".app-panel"), css);
+        Assert.assertTrue(css.contains("url(/ctx/app/a.png)"), css);
+        Assert.assertEquals(_module.getStylesheet("styles/main.less").template.toString("/ctx"), uncached("styles/main.less").replace("[#app#]", "/ctx/app"));
+        Assert.assertEquals(send("styles/other.less"), uncached("styles/other.less"));
+
+        Assert.assertNull(_module.getStylesheet("styles/none.less"));
+        Assert.assertEquals(_module.findResources(".less").size(), 4);
+    }
+
+    @Test(dependsOnMethods = "testCompile")
+    public void testImportChanged() throws Exception {
+        LessStylesheet main = _module.getStylesheet("styles/main.less");
+        LessStylesheet other = _module.getStylesheet("styles/other.less");
+        Assert.assertSame(_module.getStylesheet("styles/main.less"), main);
+
+        File f = new File(_dir, "common/base.less");
+        FileUtils.writeStringToFile(f, "@color: blue;\n.box(@w: 1px) { border: @w dotted @color; }\n", "UTF-8");
+        f.setLastModified(f.lastModified() + 2000);
+        Thread.sleep(1100); // metadata is only checked once a second
+
+        // only the stylesheet that imports the file gets compiled again
+        Assert.assertNotSame(_module.getStylesheet("styles/main.less"), main);
+        Assert.assertSame(_module.getStylesheet("styles/other.less"), other);
+        Assert.assertTrue(send("styles/main.less").contains("color: blue"));
+    }
+
+    @Test
+    public void testCompressed() throws Exception {
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        when(request.getContextPath()).thenReturn("/ctx");
+        when(request.getHeader("Accept-Encoding")).thenReturn("gzip");
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        ResourceTests.BufferServletOutputStream output = new ResourceTests.BufferServletOutputStream();
+        when(response.getOutputStream()).thenReturn(output);
+        Assert.assertTrue(_module.sendLessen(request, response, "styles/big.less", "UTF-8", "text/css", false));
+        String css = IOUtils.toString(new GZIPInputStream(new ByteArrayInputStream(output.buffer.toByteArray())), "UTF-8");
+        Assert.assertEquals(css, send("styles/big.less"));
+        Assert.assertTrue(css.contains("url(/ctx/app/a.png)"), css);
+        verify(response).setHeader("Content-Encoding", "gzip");
+
+        // too small to be worth it
+        response = mock(HttpServletResponse.class);
+        output = new ResourceTests.BufferServletOutputStream();
+        when(response.getOutputStream()).thenReturn(output);
+        Assert.assertTrue(_module.sendLessen(request, response, "styles/other.less", "UTF-8", "text/css", false));
+        Assert.assertEquals(new String(output.buffer.toByteArray(), "UTF-8"), send("styles/other.less"));
+        verify(response, never()).setHeader("Content-Encoding", "gzip");
+    }
+
+    @Test
+    public void testCustomFiltering() throws Exception {
+        ButterflyModuleImpl custom = new ButterflyModuleImpl() {
+            public PrintWriter getFilteringWriter(HttpServletRequest request, HttpServletResponse response, boolean absolute) throws IOException {
+                return new LinkRewriter(response.getWriter(), this, "/custom");
+            }
+        };
+        custom = createModule(custom, "custom", _dir, new HashMap<String,ButterflyModule>(_modules), new ExtendedProperties(), null);
+        String css = send(custom, "styles/main.less");
+        Assert.assertTrue(css.contains("url(/custom/app/a.png)"), css);
+    }
+
+    private String send(String path) throws Exception {
+        return send(_module, path);
+    }
+
+    private String send(ButterflyModuleImpl module, String path) throws Exception {
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        when(request.getContextPath()).thenReturn("/ctx");
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        StringWriter writer = new StringWriter();
+        when(response.getWriter()).thenReturn(new PrintWriter(writer));
+        Assert.assertTrue(module.sendLessen(request, response, path, "UTF-8", "text/css", false));
+        verify(response).setContentType("text/css");
+        return writer.toString();
+    }
+
+    private String uncached(String path) throws Exception {
+        Map<String,String> variables = new HashMap<String,String>();
+        variables.put("module", "app");
+        Tokenizer tokenizer = Utilities.openLess(_module.getResource(path), variables);
+        tokenizer = new CondensingTokenizer(tokenizer, false);
+        tokenizer = new IndentingTokenizer(tokenizer);
+        StringWriter writer = new StringWriter();
+        Utilities.write(tokenizer, writer);
+        return writer.toString();
+    }
+}
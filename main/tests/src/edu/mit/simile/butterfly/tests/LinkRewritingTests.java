@@ -21,6 +21,7 @@ import edu.mit.simile.butterfly.Butterfly;
 import edu.mit.simile.butterfly.ButterflyModule;
 import edu.mit.simile.butterfly.ButterflyModuleImpl;
 import edu.mit.simile.butterfly.LinkRewriter;
+import edu.mit.simile.butterfly.LinkTemplate;
 import edu.mit.simile.butterfly.MountPoint;
 
 public class LinkRewritingTests extends Butterfly {
@@ -85,6 +86,90 @@ public class LinkRewritingTests extends Butterfly {
         }
     }
         
+    @Test
+    public void rewriteStrings() throws Exception {
+        String input = IOUtils.toString(_inputURL, "UTF-8");
+        String expected = IOUtils.toString(_outputURL, "UTF-8");
+        for (int i = rounds; i >= 0; i--) {
+            StringWriter str = new StringWriter();
+            PrintWriter output = new LinkRewriter(new PrintWriter(str), _modulesByName.get("examples"));
+            int size = 1 << i;
+            for (int off = 0; off < input.length(); ) {
+                int len = Math.min(random.nextInt(size) + 1, input.length() - off);
+                if (len == 1) {
+                    output.write(input.charAt(off));
+                } else {
+                    output.write(input, off, len);
+                }
+                off += len;
+            }
+            output.close();
+            Assert.assertEquals(str.toString(), expected);
+        }
+    }
+
+    @Test
+    public void rewriteEdges() throws Exception {
+        Assert.assertEquals(rewrite("[#examples#]"), "/samples/");
+        Assert.assertEquals(rewrite("a [#examples#]/b"), "a /samples/b");
+        Assert.assertEquals(rewrite("[[#examples#]/"), "[[#examples#]/");
+        Assert.assertEquals(rewrite("[#this#]/ [#tests#]/"), "[#this#]/ /tests/");
+        Assert.assertEquals(rewrite("[#exam"), "[#exam");
+        Assert.assertEquals(rewrite("[#"), "[#");
+    }
+
+    @Test
+    public void compile() throws Exception {
+        String input = IOUtils.toString(_inputURL, "UTF-8");
+        String expected = IOUtils.toString(_outputURL, "UTF-8");
+        LinkTemplate template = LinkTemplate.compile(_modulesByName.get("examples"), input);
+        Assert.assertEquals(template.toString(null), expected);
+        Assert.assertEquals(template.getLinkCount(), 3);
+
+        // the base URL goes in front of every link, just like when rewriting
+        StringWriter str = new StringWriter();
+        PrintWriter output = new LinkRewriter(new PrintWriter(str), _modulesByName.get("examples"), "/context");
+        output.write(input);
+        output.close();
+        Assert.assertEquals(template.toString("/context"), str.toString());
+        Assert.assertEquals(LinkTemplate.compile(_modulesByName.get("examples"), "[#tests#]").toString("/context"), "/context/tests/");
+    }
+
+    @Test
+    public void flattenedLookup() throws Exception {
+        ButterflyModuleImpl parent = new ButterflyModuleImpl();
+        parent.setName("parent");
+        parent.setModules(_modulesByName);
+        parent.setDependency("skin", _modulesByName.get("classic"));
+
+        ButterflyModuleImpl child = new ButterflyModuleImpl();
+        child.setName("child");
+        child.setModules(_modulesByName);
+        child.setExtended(parent);
+        parent.addExtendedBy(child);
+        child.setDependency("theme", _modulesByName.get("tests"));
+
+        Assert.assertNotNull(child.flattenModules());
+        Assert.assertSame(child.getModule("skin"), _modulesByName.get("classic"));
+        Assert.assertSame(child.getModule("theme"), _modulesByName.get("tests"));
+        Assert.assertSame(child.getModule("examples"), _modulesByName.get("examples"));
+        Assert.assertNull(child.getModule("missing"));
+
+        // rewiring the module that is extended shows thru
+        parent.setDependency("fonts", _modulesByName.get("examples"));
+        Assert.assertSame(child.getModule("fonts"), _modulesByName.get("examples"));
+        child.flattenModules();
+        Assert.assertSame(child.getModule("fonts"), _modulesByName.get("examples"));
+    }
+
+    private String rewrite(String input) {
+        StringWriter str = new StringWriter();
+        PrintWriter output = new LinkRewriter(new PrintWriter(str), _modulesByName.get("examples"));
+        output.write(input);
+        output.close();
+        return str.toString();
+    }
+
     private void copy(int size) throws Exception {
         logger.trace("> copy({})", size);
 
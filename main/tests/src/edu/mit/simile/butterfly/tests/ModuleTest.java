@@ -0,0 +1,92 @@
+package edu.mit.simile.butterfly.tests;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+
+import org.apache.commons.collections.ExtendedProperties;
+import org.apache.commons.io.FileUtils;
+import org.testng.annotations.AfterTest;
+
+import edu.mit.simile.butterfly.Butterfly;
+import edu.mit.simile.butterfly.ButterflyClassLoader;
+import edu.mit.simile.butterfly.ButterflyModule;
+import edu.mit.simile.butterfly.ButterflyModuleImpl;
+import edu.mit.simile.butterfly.MountPoint;
+import edu.mit.simile.butterfly.velocity.ButterflyVelocityEngine;
+
+/**
+ * The base of the tests that need modules of their own, out of files
+ * written in a temporary folder that goes away once the tests are done.
+ */
+public abstract class ModuleTest extends ButterflyTest {
+
+    protected File _dir;
+
+    protected File createDir(String suffix) throws IOException {
+        _dir = File.createTempFile("butterfly", suffix);
+        _dir.delete();
+        return _dir;
+    }
+
+    @AfterTest
+    public void deleteDir() throws Exception {
+        if (_dir != null) {
+            FileUtils.deleteDirectory(_dir);
+        }
+    }
+
+    /**
+     * Initializes the given module, mounted under its name, and adds it to the given modules.
+     */
+    protected static <T extends ButterflyModuleImpl> T createModule(T module, String name, File path, Map<String,ButterflyModule> modules, ExtendedProperties properties, ButterflyVelocityEngine engine) throws Exception {
+        module.setName(name);
+        module.setPath(path);
+        module.setMountPoint(new MountPoint("/" + name + "/"));
+        module.setModules(modules);
+        module.setModuleProperties(properties);
+        if (engine != null) {
+            module.setSharedTemplateEngine(engine);
+        }
+        modules.put(name, module);
+        module.init(null);
+        return module;
+    }
+
+    /**
+     * Creates a template engine the way Butterfly does, out of the velocity
+     * properties that ship with it and the given butterfly properties.
+     */
+    protected ButterflyVelocityEngine createTemplateEngine(ExtendedProperties properties) throws Exception {
+        File webInf = new File(_dir, "WEB-INF");
+        FileUtils.copyFileToDirectory(new File(WEBAPP, "WEB-INF/velocity.properties"), webInf);
+        return new TemplateEngineFactory(webInf, properties).createTemplateEngine();
+    }
+
+    private static final File WEBAPP = new File("webapp");
+
+    static class TemplateEngineFactory extends Butterfly {
+
+        private static final long serialVersionUID = 1L;
+
+        TemplateEngineFactory(File webInfDir, ExtendedProperties properties) {
+            _webInfDir = webInfDir;
+            _properties = properties;
+            _classLoader = new ButterflyClassLoader(getClass().getClassLoader());
+        }
+
+        @Override
+        public ButterflyVelocityEngine createTemplateEngine() throws IOException {
+            return super.createTemplateEngine();
+        }
+    }
+
+    /**
+     * The properties of a module whose templates use the given macro library.
+     */
+    protected static ExtendedProperties macros(String library) {
+        ExtendedProperties properties = new ExtendedProperties();
+        properties.setProperty("templating.macros", library);
+        return properties;
+    }
+}
@@ -88,4 +88,45 @@ public class MountPointTests extends Butterfly {
         logger.trace("< testMountPoints()");
     }
     
+    @Test 
+    public void testManyMountPoints() throws Exception {
+        logger.trace("> testManyMountPoints()");
+
+        ButterflyMounter mounter = new ButterflyMounter();
+        mounter.register(MountPoint.ROOT, new ButterflyModuleImpl());
+        for (int i = 0; i < 50; i++) {
+            for (int j = 0; j < 50; j++) {
+                mounter.register(new MountPoint("/api/" + i + "/" + j + "/"), new ButterflyModuleImpl());
+            }
+        }
+        mounter.register(new MountPoint("/api/7/ [blah]"), new ButterflyModuleImpl());
+
+        Zone zone = new Zone("main","http://localhost/");
+
+        ButterflyModule m = mounter.getModule("/api/12/34/deep/path/to/something.json",zone);
+        Assert.assertEquals(m.getMountPoint(), new MountPoint("/api/12/34/"));
+
+        m = mounter.getModule("/api/12/340/index.html",zone);
+        Assert.assertEquals(m.getMountPoint(), MountPoint.ROOT);
+
+        m = mounter.getModule("/api/12//34/",zone);
+        Assert.assertEquals(m.getMountPoint(), MountPoint.ROOT);
+
+        m = mounter.getModule("index.html",zone);
+        Assert.assertEquals(m.getMountPoint(), MountPoint.ROOT);
+
+        m = mounter.getModule("/api/7/index.html",zone);
+        Assert.assertEquals(m.getMountPoint(), new MountPoint("/api/7/ [blah]"));
+
+        m = mounter.getModule("/api/7/3/index.html",null);
+        Assert.assertEquals(m.getMountPoint(), new MountPoint("/api/7/3/"));
+
+        // mounting more modules after the first lookup is taken into account
+        mounter.register(new MountPoint("/api/12/340/"), new ButterflyModuleImpl());
+        m = mounter.getModule("/api/12/340/index.html",zone);
+        Assert.assertEquals(m.getMountPoint(), new MountPoint("/api/12/340/"));
+
+        logger.trace("< testManyMountPoints()");
+    }
+    
 }
\ No newline at end of file
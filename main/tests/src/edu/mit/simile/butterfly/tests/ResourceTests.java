@@ -0,0 +1,512 @@
+package edu.mit.simile.butterfly.tests;
+
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.mockito.ArgumentCaptor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testng.Assert;
+import org.testng.annotations.AfterTest;
+import org.testng.annotations.BeforeTest;
+import org.testng.annotations.Test;
+
+import edu.mit.simile.butterfly.Butterfly;
+import edu.mit.simile.butterfly.ButterflyModule;
+import edu.mit.simile.butterfly.ButterflyModuleImpl;
+import edu.mit.simile.butterfly.LinkRewriter;
+import edu.mit.simile.butterfly.MountPoint;
+import edu.mit.simile.butterfly.RenderCache;
+
+public class ResourceTests {
+
+    transient Logger logger;
+
+    private static final String BIG = StringUtils.repeat("var a = 1;\n", 200);
+
+    private File _dir;
+    private ButterflyModuleImpl _parent;
+    private ButterflyModuleImpl _child;
+
+    @BeforeTest
+    public void setup() throws Exception {
+        logger = LoggerFactory.getLogger(this.getClass());
+        logger.trace("> setup()");
+
+        _dir = File.createTempFile("butterfly", "resources");
+        _dir.delete();
+
+        File parent = new File(_dir, "parent");
+        FileUtils.writeStringToFile(new File(parent, "images/logo.png"), "logo", "UTF-8");
+        FileUtils.writeStringToFile(new File(parent, "index.html"), "parent", "UTF-8");
+        FileUtils.writeStringToFile(new File(parent, "data.bin"), "0123456789", "UTF-8");
+        FileUtils.writeStringToFile(new File(parent, "big.js"), BIG, "UTF-8");
+        FileUtils.writeByteArrayToFile(new File(parent, "big.js.gz"), gzip(BIG));
+        FileUtils.writeStringToFile(new File(parent, "big.html"), BIG + "a++;\n", "UTF-8");
+        FileUtils.writeStringToFile(new File(parent, "huge.bin"), StringUtils.repeat("0123456789", 30000), "UTF-8");
+
+        File child = new File(_dir, "child");
+        FileUtils.writeStringToFile(new File(child, "index.html"), "child", "UTF-8");
+        FileUtils.writeStringToFile(new File(child, "links.html"), "<a href=\"[#parent#]/x\">", "UTF-8");
+
+        _parent = new ButterflyModuleImpl();
+        _parent.setName("parent");
+        _parent.setPath(parent);
+
+        _child = new ButterflyModuleImpl();
+        _child.setName("child");
+        _child.setPath(child);
+        _child.setExtended(_parent);
+        _parent.addExtendedBy(_child);
+
+        Map<String,ButterflyModule> modules = new HashMap<String,ButterflyModule>();
+        for (ButterflyModuleImpl m : new ButterflyModuleImpl[] { _parent, _child }) {
+            m.setMountPoint(new MountPoint("/" + m.getName() + "/"));
+            m.setModules(modules);
+            modules.put(m.getName(), m);
+        }
+
+        _parent.init(null);
+        _child.init(null);
+
+        logger.trace("< setup()");
+    }
+
+    @AfterTest
+    public void teardown() throws Exception {
+        FileUtils.deleteDirectory(_dir);
+    }
+
+    @Test
+    public void testResolution() throws Exception {
+        Assert.assertEquals(_child.getResource("index.html"), file("child/index.html"));
+        Assert.assertEquals(_child.getResource("/index.html"), file("child/index.html"));
+        Assert.assertEquals(_child.getResource("@@index.html@@"), file("parent/index.html"));
+        Assert.assertEquals(_child.getResource("images/logo.png"), file("parent/images/logo.png"));
+        Assert.assertNull(_child.getResource("missing.html"));
+    }
+
+    @Test(dependsOnMethods = "testResolution")
+    public void testInvalidation() throws Exception {
+        File f = new File(_dir, "parent/missing.html");
+        FileUtils.writeStringToFile(f, "found", "UTF-8");
+
+        // misses are not remembered when nothing watches the files
+        Assert.assertEquals(_child.getResource("missing.html"), file("parent/missing.html"));
+
+        f.delete();
+        _parent.resourcesChanged();
+        Assert.assertNull(_child.getResource("missing.html"));
+    }
+
+    @Test
+    public void testConditionalRequests() throws Exception {
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        when(request.getMethod()).thenReturn("GET");
+        when(request.getDateHeader("If-Modified-Since")).thenReturn(-1L);
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        when(response.getOutputStream()).thenReturn(new NullServletOutputStream());
+
+        _child.sendBinary(request, response, "images/logo.png", "image/png");
+        ArgumentCaptor<String> etag = ArgumentCaptor.forClass(String.class);
+        verify(response).setHeader(eq("ETag"), etag.capture());
+        verify(response).setHeader("Cache-Control", "no-cache");
+        verify(response).getOutputStream();
+        verify(response).setContentLengthLong(4L);
+        Assert.assertTrue(etag.getValue().startsWith("\""));
+
+        // the same ETag gets a 304 without the resource being sent
+        when(request.getHeader("If-None-Match")).thenReturn("\"other\", " + etag.getValue());
+        response = mock(HttpServletResponse.class);
+        _child.sendBinary(request, response, "images/logo.png", "image/png");
+        verify(response).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        verify(response, never()).getOutputStream();
+
+        // so does a date that is not older than the last modification
+        when(request.getHeader("If-None-Match")).thenReturn(null);
+        when(request.getDateHeader("If-Modified-Since")).thenReturn(new File(_dir, "parent/images/logo.png").lastModified());
+        response = mock(HttpServletResponse.class);
+        _child.sendBinary(request, response, "images/logo.png", "image/png");
+        verify(response).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+
+        // but not a stale ETag
+        when(request.getHeader("If-None-Match")).thenReturn("\"other\"");
+        response = mock(HttpServletResponse.class);
+        when(response.getOutputStream()).thenReturn(new NullServletOutputStream());
+        _child.sendBinary(request, response, "images/logo.png", "image/png");
+        verify(response, never()).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        verify(response).getOutputStream();
+    }
+
+    @Test
+    public void testMappedFiles() throws Exception {
+        // large files are handed to containers that take buffers as mappings, small ones are copied
+        for (int i = 0; i < 2; i++) {
+            SendContentServletOutputStream output = sendContent("huge.bin");
+            Assert.assertEquals(output.sent.size(), 300000);
+            Assert.assertEquals(output.buffer.size(), 0);
+            Assert.assertEquals(new String(output.sent.toByteArray(), "UTF-8"), StringUtils.repeat("0123456789", 30000));
+        }
+        SendContentServletOutputStream output = sendContent("data.bin");
+        Assert.assertEquals(output.sent.size(), 0);
+        Assert.assertEquals(new String(output.buffer.toByteArray(), "UTF-8"), "0123456789");
+    }
+
+    private SendContentServletOutputStream sendContent(String path) throws Exception {
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        when(request.getMethod()).thenReturn("GET");
+        when(request.getDateHeader("If-Modified-Since")).thenReturn(-1L);
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        SendContentServletOutputStream output = new SendContentServletOutputStream();
+        when(response.getOutputStream()).thenReturn(output);
+        _child.sendBinary(request, response, path, "application/octet-stream");
+        return output;
+    }
+
+    @Test
+    public void testUnknownLastModified() throws Exception {
+        // a resource whose connection doesn't tell when it was last modified
+        URL resource = new URL(null, "test:/data", new URLStreamHandler() {
+            protected URLConnection openConnection(URL u) {
+                return new URLConnection(u) {
+                    public void connect() {
+                    }
+
+                    public InputStream getInputStream() {
+                        return new ByteArrayInputStream(new byte[] { 1, 2, 3 });
+                    }
+                };
+            }
+        });
+
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        when(request.getMethod()).thenReturn("GET");
+        when(request.getDateHeader("If-Modified-Since")).thenReturn(System.currentTimeMillis());
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        when(response.getOutputStream()).thenReturn(new NullServletOutputStream());
+
+        _child.sendBinary(request, response, resource, "application/octet-stream");
+        verify(response).setHeader(eq("ETag"), anyString());
+        verify(response, never()).setDateHeader(eq("Last-Modified"), anyLong());
+        verify(response, never()).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        verify(response).getOutputStream();
+    }
+
+    @Test
+    public void testRanges() throws Exception {
+        Assert.assertEquals(range("bytes=2-4", null), "234");
+        Assert.assertEquals(range("bytes=7-", null), "789");
+        Assert.assertEquals(range("bytes=-2", null), "89");
+        Assert.assertEquals(range("bytes=8-100", null), "89");
+        Assert.assertEquals(range("bytes=0-1,-1", null), "multipart");
+        Assert.assertEquals(range("bytes=-1,0-1", null), "multipart");
+        Assert.assertEquals(range("bytes=4-6,2-4", null), "23456");
+        Assert.assertEquals(range("bytes=2-3,4-5", null), "2345");
+        Assert.assertEquals(range("bytes=0-,0-", null), "0123456789");
+        Assert.assertEquals(range("bytes=0-4,2-8", null), "0123456789");
+        Assert.assertEquals(range("bytes=20-30", null), "416");
+        Assert.assertEquals(range("bytes=4-2", null), "0123456789");
+        Assert.assertEquals(range("lines=1-2", null), "0123456789");
+        Assert.assertEquals(range("bytes=2-4", "\"stale\""), "0123456789");
+    }
+
+    private String range(String range, String ifRange) throws Exception {
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        when(request.getMethod()).thenReturn("GET");
+        when(request.getDateHeader("If-Modified-Since")).thenReturn(-1L);
+        when(request.getHeader("Range")).thenReturn(range);
+        when(request.getHeader("If-Range")).thenReturn(ifRange);
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        BufferServletOutputStream output = new BufferServletOutputStream();
+        when(response.getOutputStream()).thenReturn(output);
+
+        _child.sendBinary(request, response, "data.bin", "application/octet-stream");
+        verify(response).setHeader("Accept-Ranges", "bytes");
+
+        String body = new String(output.buffer.toByteArray(), "UTF-8");
+        if (body.length() == 0) {
+            verify(response).sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+            verify(response).setHeader("Content-Range", "bytes */10");
+            return "416";
+        }
+        if (body.length() == 10) {
+            verify(response, never()).setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+            return body;
+        }
+        verify(response).setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        verify(response).setContentLengthLong(output.buffer.size());
+        if (body.indexOf("Content-Range: bytes 0-1/10") > 0 && body.indexOf("Content-Range: bytes 9-9/10") > 0) {
+            return "multipart";
+        }
+        return body;
+    }
+
+    @Test
+    public void testRenderCache() throws Exception {
+        RenderCache cache = new RenderCache(1024);
+        _child.setRenderCache(cache);
+        try {
+            for (int i = 0; i < 3; i++) {
+                HttpServletRequest request = mock(HttpServletRequest.class);
+                when(request.getMethod()).thenReturn("GET");
+                when(request.getDateHeader("If-Modified-Since")).thenReturn(-1L);
+                HttpServletResponse response = mock(HttpServletResponse.class);
+                BufferServletOutputStream output = new BufferServletOutputStream();
+                when(response.getOutputStream()).thenReturn(output);
+
+                _child.sendText(request, response, "index.html", "UTF-8", "text/html", false);
+                Assert.assertEquals(new String(output.buffer.toByteArray(), "UTF-8"), "child");
+                verify(response).setContentLength(5);
+            }
+            Assert.assertEquals(cache.getMisses(), 1);
+            Assert.assertEquals(cache.getHits(), 2);
+            Assert.assertEquals(cache.getCount(), 1);
+
+            // entries count against the budget and the least recently used go first
+            for (int i = 0; i < 11; i++) {
+                cache.put("key" + i, new RenderCache.Entry(new byte[100], 0));
+            }
+            Assert.assertTrue(cache.getSize() <= 1024);
+            Assert.assertEquals(cache.getEvictions(), 2);
+            Assert.assertNull(cache.get("key0", 0));
+            Assert.assertNotNull(cache.get("key10", 0));
+            Assert.assertNull(cache.get("key10", 1));
+
+            // too big to be cached at all
+            cache.put("big", new RenderCache.Entry(new byte[200], 0));
+            Assert.assertNull(cache.get("big", 0));
+        } finally {
+            _child.setRenderCache(null);
+        }
+    }
+
+    @Test
+    public void testRenderCacheKeys() throws Exception {
+        RenderCache cache = new RenderCache(1024);
+        _child.setRenderCache(cache);
+        try {
+            // these context paths have the same String.hashCode()
+            Assert.assertEquals("/Aa".hashCode(), "/BB".hashCode());
+            for (String context : new String[] { "/Aa", "/BB", "/Aa" }) {
+                HttpServletRequest request = mock(HttpServletRequest.class);
+                when(request.getMethod()).thenReturn("GET");
+                when(request.getDateHeader("If-Modified-Since")).thenReturn(-1L);
+                when(request.getHeader(Butterfly.CONTEXT_HEADER)).thenReturn(context);
+                HttpServletResponse response = mock(HttpServletResponse.class);
+                BufferServletOutputStream output = new BufferServletOutputStream();
+                when(response.getOutputStream()).thenReturn(output);
+
+                _child.sendText(request, response, "links.html", "UTF-8", "text/html", false);
+                Assert.assertEquals(new String(output.buffer.toByteArray(), "UTF-8"), "<a href=\"" + context + "/parent/x\">");
+            }
+            Assert.assertEquals(cache.getCount(), 2);
+            Assert.assertEquals(cache.getHits(), 1);
+        } finally {
+            _child.setRenderCache(null);
+        }
+    }
+
+    @Test
+    public void testLinkTemplates() throws Exception {
+        // wrappers with the same String.hashCode() get templates of their own
+        for (String prologue : new String[] { "Aa", "BB", "Aa" }) {
+            StringWriter writer = new StringWriter();
+            _child.sendWrappedText(textRequest(), textResponse(writer), _child.getResource("links.html"), "UTF-8", "text/html", prologue, null, false);
+            Assert.assertEquals(writer.toString(), prologue + "<a href=\"/ctx/parent/x\">");
+        }
+
+        // a module that filters text its own way still gets to do it
+        ButterflyModuleImpl custom = new ButterflyModuleImpl() {
+            public PrintWriter getFilteringWriter(HttpServletRequest request, HttpServletResponse response, boolean absolute) throws IOException {
+                return new LinkRewriter(response.getWriter(), this, "/custom");
+            }
+        };
+        custom.setName("custom");
+        custom.setPath(new File(_dir, "child"));
+        custom.setMountPoint(new MountPoint("/custom/"));
+        Map<String,ButterflyModule> modules = new HashMap<String,ButterflyModule>();
+        modules.put("parent", _parent);
+        modules.put("custom", custom);
+        custom.setModules(modules);
+        custom.init(null);
+        StringWriter writer = new StringWriter();
+        custom.sendText(textRequest(), textResponse(writer), "links.html", "UTF-8", "text/html", false);
+        Assert.assertEquals(writer.toString(), "<a href=\"/custom/parent/x\">");
+
+        // links follow the dependencies wired after they were first resolved
+        ButterflyModuleImpl wired = new ButterflyModuleImpl();
+        wired.setName("wired");
+        wired.setPath(new File(_dir, "child"));
+        wired.setMountPoint(new MountPoint("/wired/"));
+        wired.setModules(modules);
+        wired.init(null);
+        writer = new StringWriter();
+        wired.sendText(textRequest(), textResponse(writer), "links.html", "UTF-8", "text/html", false);
+        Assert.assertEquals(writer.toString(), "<a href=\"/ctx/parent/x\">");
+        ButterflyModuleImpl other = new ButterflyModuleImpl();
+        other.setName("other");
+        other.setMountPoint(new MountPoint("/other/"));
+        wired.setDependency("parent", other);
+        writer = new StringWriter();
+        wired.sendText(textRequest(), textResponse(writer), "links.html", "UTF-8", "text/html", false);
+        Assert.assertEquals(writer.toString(), "<a href=\"/ctx/other/x\">");
+    }
+
+    private HttpServletRequest textRequest() {
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        when(request.getMethod()).thenReturn("GET");
+        when(request.getDateHeader("If-Modified-Since")).thenReturn(-1L);
+        when(request.getContextPath()).thenReturn("/ctx");
+        return request;
+    }
+
+    private HttpServletResponse textResponse(StringWriter writer) throws IOException {
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        when(response.getWriter()).thenReturn(new PrintWriter(writer));
+        return response;
+    }
+
+    @Test
+    public void testCompression() throws Exception {
+        byte[] sibling = FileUtils.readFileToByteArray(new File(_dir, "parent/big.js.gz"));
+
+        // binary files are sent compressed only if they have a precompressed sibling
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        Assert.assertEquals(compressed(response, "gzip, deflate", "big.js", false), sibling);
+        verify(response).setHeader("Content-Encoding", "gzip");
+        verify(response).setHeader("Vary", "Accept-Encoding");
+        ArgumentCaptor<String> etag = ArgumentCaptor.forClass(String.class);
+        verify(response).setHeader(eq("ETag"), etag.capture());
+        Assert.assertTrue(etag.getValue().endsWith("-gzip\""));
+
+        response = mock(HttpServletResponse.class);
+        Assert.assertEquals(new String(compressed(response, "gzip;q=0, identity", "big.js", false), "UTF-8"), BIG);
+        verify(response, never()).setHeader(eq("Content-Encoding"), eq("gzip"));
+        verify(response).setHeader("Vary", "Accept-Encoding");
+
+        response = mock(HttpServletResponse.class);
+        Assert.assertEquals(new String(compressed(response, "gzip", "index.html", false), "UTF-8"), "child");
+        verify(response, never()).setHeader(eq("Vary"), eq("Accept-Encoding"));
+
+        // without the render cache, text is compressed as it's sent
+        response = mock(HttpServletResponse.class);
+        byte[] rendered = compressed(response, "gzip", "big.html", true);
+        Assert.assertEquals(new String(IOUtils.toByteArray(new GZIPInputStream(new ByteArrayInputStream(rendered))), "UTF-8"), BIG + "a++;\n");
+        verify(response).setHeader("Content-Encoding", "gzip");
+        verify(response).setContentLength(rendered.length);
+
+        RenderCache cache = new RenderCache(1024 * 1024);
+        _child.setRenderCache(cache);
+        try {
+            // text that is sent untouched comes from the sibling too
+            response = mock(HttpServletResponse.class);
+            Assert.assertEquals(compressed(response, "gzip", "big.js", true), sibling);
+            verify(response).setHeader("Content-Encoding", "gzip");
+
+            // and text that has none gets compressed once and kept along the rendered content
+            for (int i = 0; i < 2; i++) {
+                response = mock(HttpServletResponse.class);
+                byte[] content = compressed(response, "gzip", "big.html", true);
+                Assert.assertEquals(new String(IOUtils.toByteArray(new GZIPInputStream(new ByteArrayInputStream(content))), "UTF-8"), BIG + "a++;\n");
+                verify(response).setContentLength(content.length);
+            }
+            Assert.assertEquals(cache.getHits(), 1);
+            Assert.assertTrue(cache.getSize() > 2 * BIG.length());
+
+            response = mock(HttpServletResponse.class);
+            Assert.assertEquals(new String(compressed(response, null, "big.html", true), "UTF-8"), BIG + "a++;\n");
+            verify(response, never()).setHeader(eq("Content-Encoding"), eq("gzip"));
+            verify(response).setHeader("Vary", "Accept-Encoding");
+        } finally {
+            _child.setRenderCache(null);
+        }
+    }
+
+    private byte[] compressed(HttpServletResponse response, String acceptEncoding, String path, boolean text) throws Exception {
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        when(request.getMethod()).thenReturn("GET");
+        when(request.getDateHeader("If-Modified-Since")).thenReturn(-1L);
+        when(request.getHeader("Accept-Encoding")).thenReturn(acceptEncoding);
+        BufferServletOutputStream output = new BufferServletOutputStream();
+        when(response.getOutputStream()).thenReturn(output);
+
+        if (text) {
+            _child.sendText(request, response, path, "UTF-8", "text/html", false);
+        } else {
+            _child.sendBinary(request, response, path, "text/javascript");
+        }
+        return output.buffer.toByteArray();
+    }
+
+    private static byte[] gzip(String s) throws Exception {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        GZIPOutputStream output = new GZIPOutputStream(buffer);
+        output.write(s.getBytes("UTF-8"));
+        output.close();
+        return buffer.toByteArray();
+    }
+
+    static class NullServletOutputStream extends ServletOutputStream {
+        public void write(int b) {
+        }
+
+        public boolean isReady() {
+            return true;
+        }
+
+        public void setWriteListener(WriteListener listener) {
+        }
+    }
+
+    static class BufferServletOutputStream extends NullServletOutputStream {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+        public void write(int b) {
+            buffer.write(b);
+        }
+    }
+
+    // the way Jetty's output streams take content
+    static class SendContentServletOutputStream extends BufferServletOutputStream {
+        ByteArrayOutputStream sent = new ByteArrayOutputStream();
+
+        public void sendContent(ByteBuffer content) {
+            while (content.hasRemaining()) {
+                sent.write(content.get());
+            }
+        }
+    }
+
+    private URL file(String path) throws Exception {
+        return new File(_dir, path).toURI().toURL();
+    }
+}
@@ -0,0 +1,129 @@
+package edu.mit.simile.butterfly.tests;
+
+import java.io.File;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.collections.ExtendedProperties;
+import org.apache.commons.io.FileUtils;
+import org.apache.velocity.VelocityContext;
+import org.slf4j.LoggerFactory;
+import org.testng.Assert;
+import org.testng.annotations.BeforeTest;
+import org.testng.annotations.Test;
+
+import edu.mit.simile.butterfly.Butterfly;
+import edu.mit.simile.butterfly.ButterflyModule;
+import edu.mit.simile.butterfly.ButterflyModuleImpl;
+import edu.mit.simile.butterfly.velocity.ButterflyVelocityEngine;
+import edu.mit.simile.butterfly.velocity.TemplateCompiler;
+
+/**
+ * Renders the same templates compiled and interpreted and compares the results.
+ */
+public class TemplateCompilerTests extends ModuleTest {
+
+    private static final File SAMPLES = new File("../modules/samples");
+
+    private TemplateCompiler _compiler;
+    private Map<String,ButterflyModuleImpl> _interpreted;
+    private Map<String,ButterflyModuleImpl> _compiled;
+
+    @BeforeTest
+    public void setup() throws Exception {
+        logger = LoggerFactory.getLogger(this.getClass());
+        logger.trace("> setup()");
+
+        createDir("compiler");
+        FileUtils.writeStringToFile(new File(_dir, "branches.vt"),
+            "#foreach($item in $items)\n" +
+            "#if($item == \"one\") first\n" +
+            "#elseif($item == \"two\") second #set($seen = $item)\n" +
+            "#elseif($item == \"zzz\") never\n" +
+            "#else other $velocityCount#if($velocityHasNext), #end\n" +
+            "#end\n" +
+            "#end\n" +
+            "#if($missing) missing #end seen $seen\n" +
+            "#foreach($p in $paths)#foreach($i in $items)$p.name/$i #end#end\n" +
+            "## a comment\n" +
+            "#greet($title) #* block *# \\#if done\n" +
+            "refs $title ${title}x $!title $!{missing} $missing \\$title \\\\$title #$title $items\n", "UTF-8");
+        FileUtils.writeStringToFile(new File(_dir, "stop.vt"), "before #if(true)inside #stop after #end after", "UTF-8");
+        FileUtils.writeStringToFile(new File(_dir, "macros.vm"), "#macro(greet $n)#if($n)Hello $n#else Nobody#end#end", "UTF-8");
+
+        ExtendedProperties properties = new ExtendedProperties();
+        properties.setProperty(Butterfly.TEMPLATING_PRODUCTION, "true");
+        _interpreted = createModules(createTemplateEngine(properties));
+        properties.setProperty(Butterfly.TEMPLATING_COMPILE, "true");
+        ButterflyVelocityEngine engine = createTemplateEngine(properties);
+        _compiler = engine.getCompiler();
+        _compiled = createModules(engine);
+
+        logger.trace("< setup()");
+    }
+
+    private Map<String,ButterflyModuleImpl> createModules(ButterflyVelocityEngine engine) throws Exception {
+        Map<String,ButterflyModule> modules = new HashMap<String,ButterflyModule>();
+        Map<String,ButterflyModuleImpl> result = new HashMap<String,ButterflyModuleImpl>();
+        ButterflyModuleImpl examples = createModule(new ButterflyModuleImpl(), "examples", new File(SAMPLES, "examples"), modules, macros("macros.vm"), engine);
+        ButterflyModuleImpl extended = new ButterflyModuleImpl();
+        extended.setExtended(examples);
+        createModule(extended, "extended-examples", new File(SAMPLES, "extended-examples"), modules, macros("macros.vm"), engine);
+        createModule(new ButterflyModuleImpl(), "test", _dir, modules, macros("macros.vm"), engine);
+        for (ButterflyModule m : modules.values()) {
+            result.put(m.getName(), (ButterflyModuleImpl) m);
+        }
+        return result;
+    }
+
+    @Test
+    public void testCompiledTemplates() throws Exception {
+        int count = 0;
+        for (String name : Arrays.asList("examples", "extended-examples", "test")) {
+            for (String template : _compiled.get(name).findTemplates()) {
+                for (String body : Arrays.asList("nested.vt", "index.vt", "dhtml/slideshow.vt")) {
+                    String expected = render(_interpreted.get(name), template, body);
+                    String actual = render(_compiled.get(name), template, body);
+                    Assert.assertEquals(actual, expected, "template " + template + " of module " + name + " with body " + body);
+                    count++;
+                }
+            }
+        }
+        Assert.assertTrue(count > 0);
+        Assert.assertTrue(_compiler.getCompiled() > 0);
+        Assert.assertEquals(_compiler.getFallbacks(), 0);
+
+        // the templates are compiled once, when they are parsed
+        long compiled = _compiler.getCompiled();
+        Assert.assertEquals(render(_compiled.get("extended-examples"), "template.vt", "nested.vt"),
+                render(_interpreted.get("extended-examples"), "template.vt", "nested.vt"));
+        Assert.assertEquals(_compiler.getCompiled(), compiled);
+
+        Assert.assertTrue(render(_compiled.get("test"), "branches.vt", null).contains("first"));
+        Assert.assertTrue(render(_compiled.get("test"), "branches.vt", null).contains("Hello Samples"));
+        Assert.assertTrue(render(_compiled.get("test"), "branches.vt", null).contains("refs Samples Samplesx Samples  $missing $title \\Samples #Samples [one, two, three, four]"));
+        Assert.assertTrue(render(_compiled.get("extended-examples"), "nested.vt", null).contains("<li>two</li>"));
+        Assert.assertEquals(render(_compiled.get("test"), "stop.vt", null), "before inside ");
+    }
+
+    private String render(ButterflyModuleImpl module, String template, String body) throws Exception {
+        VelocityContext context = new VelocityContext();
+        context.put("title", "Samples");
+        context.put("items", Arrays.asList("one", "two", "three", "four"));
+        List<ButterflyModuleImpl.Level> paths = new ArrayList<ButterflyModuleImpl.Level>();
+        paths.add(new ButterflyModuleImpl.Level("home", "/"));
+        paths.add(new ButterflyModuleImpl.Level("samples", "/samples/"));
+        context.put("paths", paths);
+        context.put("headers", "dhtml/slideshow.headers.vt");
+        if (body != null) {
+            context.put("body", body);
+        }
+        StringWriter writer = new StringWriter();
+        module.mergeTemplate(template, "UTF-8", context, writer);
+        return writer.toString();
+    }
+}
@@ -0,0 +1,276 @@
+package edu.mit.simile.butterfly.tests;
+
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.collections.ExtendedProperties;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.exception.ExceptionUtils;
+import org.apache.velocity.VelocityContext;
+import org.slf4j.LoggerFactory;
+import org.testng.Assert;
+import org.testng.annotations.BeforeTest;
+import org.testng.annotations.Test;
+
+import edu.mit.simile.butterfly.Butterfly;
+import edu.mit.simile.butterfly.ButterflyModule;
+import edu.mit.simile.butterfly.ButterflyModuleImpl;
+import edu.mit.simile.butterfly.velocity.ButterflyResourceCache;
+import edu.mit.simile.butterfly.velocity.ButterflyVelocityEngine;
+import edu.mit.simile.butterfly.velocity.TemplatePrecompiler;
+
+public class TemplateTests extends ModuleTest {
+
+    private static final int TEMPLATES = 50;
+    private static final int THREADS = 16;
+
+    private ButterflyVelocityEngine _engine;
+    private ButterflyModuleImpl _module;
+    private ButterflyModuleImpl _other;
+    private Map<String,ButterflyModule> _modules;
+
+    @BeforeTest
+    public void setup() throws Exception {
+        logger = LoggerFactory.getLogger(this.getClass());
+        logger.trace("> setup()");
+
+        createDir("templates");
+        File app = new File(_dir, "app");
+        FileUtils.writeStringToFile(new File(app, "page.vt"), "Hello $name!", "UTF-8");
+        FileUtils.writeStringToFile(new File(app, "macro.vt"), "#greet($name)", "UTF-8");
+        FileUtils.writeStringToFile(new File(app, "macros.vm"), "#macro(greet $n)Hello $n!#end", "UTF-8");
+        FileUtils.writeStringToFile(new File(app, "parts/header.vt"), "<h1>$name</h1>", "UTF-8");
+        for (int i = 0; i < TEMPLATES; i++) {
+            FileUtils.writeStringToFile(new File(app, "pages/page" + i + ".vt"), "#parse(\"parts/header.vt\") " + i, "UTF-8");
+        }
+        File other = new File(_dir, "other");
+        FileUtils.writeStringToFile(new File(other, "page.vt"), "Hi $name!", "UTF-8");
+        FileUtils.writeStringToFile(new File(other, "macro.vt"), "#greet($name)", "UTF-8");
+        FileUtils.writeStringToFile(new File(other, "macros.vm"), "#macro(greet $n)Hi $n!#end", "UTF-8");
+
+        // the way butterfly configures templating in production
+        ExtendedProperties properties = new ExtendedProperties();
+        properties.setProperty(Butterfly.TEMPLATING_PRODUCTION, "true");
+        _engine = createTemplateEngine(properties);
+
+        _modules = new HashMap<String,ButterflyModule>();
+        _module = createModule("app", app, _modules);
+        _other = createModule("other", other, _modules);
+
+        logger.trace("< setup()");
+    }
+
+    private ButterflyModuleImpl createModule(String name, File path, Map<String,ButterflyModule> modules) throws Exception {
+        return createModule(name, path, modules, new ButterflyModuleImpl());
+    }
+
+    private ButterflyModuleImpl createModule(String name, File path, Map<String,ButterflyModule> modules, ButterflyModuleImpl module) throws Exception {
+        return createModule(module, name, path, modules, macros("macros.vm"), _engine);
+    }
+
+    @Test
+    public void testProductionSettings() throws Exception {
+        Assert.assertEquals(_engine.getProperties().getProperty("butterfly.resource.loader.modificationCheckInterval"), "0");
+        Assert.assertEquals(createTemplateEngine(new ExtendedProperties()).getProperties().getProperty("butterfly.resource.loader.modificationCheckInterval"), "1");
+        Assert.assertNull(_engine.getCompiler());
+    }
+
+    @Test
+    public void testTemplateCache() throws Exception {
+        // the engine only gets created when the first template is rendered
+        Assert.assertNull(_module.getTemplateCache());
+
+        Assert.assertEquals(render(_module, "page.vt"), "Hello world!");
+        Assert.assertEquals(render(_module, "page.vt"), "Hello world!");
+        ButterflyResourceCache cache = _module.getTemplateCache();
+        Assert.assertNotNull(cache);
+        Assert.assertSame(_other.getTemplateCache(), cache);
+        Assert.assertEquals(cache.getReparses(), 2); // the page and the macro library
+        Assert.assertEquals(cache.getHits(), 2);
+        Assert.assertEquals(cache.invalidateModified(_module), 0);
+
+        // the same name is a different template in another module
+        Assert.assertEquals(render(_other, "page.vt"), "Hi world!");
+        Assert.assertEquals(cache.getReparses(), 4);
+
+        File f = new File(_dir, "app/page.vt");
+        FileUtils.writeStringToFile(f, "Goodbye $name!", "UTF-8");
+        f.setLastModified(f.lastModified() + 2000);
+
+        // velocity never looks at the file again by itself
+        Assert.assertEquals(render(_module, "page.vt"), "Hello world!");
+        Assert.assertEquals(cache.getReparses(), 4);
+
+        Assert.assertEquals(cache.invalidateModified(_other), 0);
+        Assert.assertEquals(cache.invalidateModified(_module), 1);
+        Assert.assertEquals(render(_module, "page.vt"), "Goodbye world!");
+        Assert.assertEquals(render(_other, "page.vt"), "Hi world!");
+        Assert.assertEquals(cache.getReparses(), 5);
+
+        _module.resourcesChanged();
+        Assert.assertEquals(cache.size(), 2);
+    }
+
+    @Test(dependsOnMethods = "testTemplateCache")
+    public void testMacroLibraries() throws Exception {
+        Assert.assertEquals(render(_module, "macro.vt"), "Hello world!");
+        Assert.assertEquals(render(_other, "macro.vt"), "Hi world!");
+        Assert.assertEquals(render(_module, "macro.vt"), "Hello world!");
+    }
+
+    @Test(dependsOnMethods = "testTemplateCache")
+    public void testInlineMacros() throws Exception {
+        // velocity keeps inline macros by template name, and these modules have templates with the same names
+        ButterflyModuleImpl[] modules = new ButterflyModuleImpl[2];
+        for (int i = 0; i < modules.length; i++) {
+            String name = "inline" + i;
+            File dir = new File(_dir, name);
+            FileUtils.writeStringToFile(new File(dir, "index.vt"), "#macro(tag $x)<" + name + " $x>#end#tag($name) #parse(\"part.vt\")", "UTF-8");
+            FileUtils.writeStringToFile(new File(dir, "part.vt"), "#macro(part)[" + name + "]#end#part()", "UTF-8");
+            FileUtils.writeStringToFile(new File(dir, "macros.vm"), "", "UTF-8");
+            modules[i] = createModule(name, dir, _modules);
+        }
+        for (int i = 0; i < 4; i++) {
+            String name = "inline" + (i % 2);
+            Assert.assertEquals(render(modules[i % 2], "index.vt"), "<" + name + " world> [" + name + "]");
+        }
+
+        // the templates pulled in thru #parse don't pile up in the macro libraries of the module
+        Assert.assertEquals(modules[0].getMacroLibraries().size(), 1);
+    }
+
+    @Test(dependsOnMethods = "testTemplateCache")
+    public void testConcurrentRendering() throws Exception {
+        ButterflyResourceCache cache = _module.getTemplateCache();
+        cache.clear(_module);
+        int others = cache.size();
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Future<String>> results = new ArrayList<Future<String>>();
+        for (int i = 0; i < TEMPLATES * THREADS; i++) {
+            final String template = "pages/page" + (i % TEMPLATES) + ".vt";
+            results.add(executor.submit(new Callable<String>() {
+                public String call() throws Exception {
+                    start.await();
+                    return render(_module, template);
+                }
+            }));
+        }
+        start.countDown();
+        for (int i = 0; i < results.size(); i++) {
+            Assert.assertEquals(results.get(i).get(30, TimeUnit.SECONDS), "<h1>world</h1> " + (i % TEMPLATES));
+        }
+        executor.shutdown();
+
+        Assert.assertEquals(cache.size(), others + TEMPLATES + 2); // the pages, the header and the macro library
+    }
+
+    @Test(dependsOnMethods = "testConcurrentRendering")
+    public void testPrecompile() throws Exception {
+        File dir = new File(_dir, "child");
+        FileUtils.writeStringToFile(new File(dir, "page.vt"), "Child $name!", "UTF-8");
+        FileUtils.writeStringToFile(new File(dir, "own.vt"), "Own", "UTF-8");
+        ButterflyModuleImpl child = new ButterflyModuleImpl();
+        child.setExtended(_module);
+        child = createModule("child", dir, _modules, child);
+
+        ButterflyResourceCache cache = _module.getTemplateCache();
+        int size = cache.size();
+        TemplatePrecompiler.precompile(Collections.<ButterflyModule>singleton(child));
+
+        // its own templates, those it inherits and its macro library
+        Assert.assertEquals(cache.size(), size + TEMPLATES + 5);
+        long reparses = cache.getReparses();
+        Assert.assertEquals(render(child, "page.vt"), "Child world!");
+        Assert.assertEquals(render(child, "pages/page7.vt"), "<h1>world</h1> 7");
+        Assert.assertEquals(cache.getReparses(), reparses);
+
+        dir = new File(_dir, "broken");
+        FileUtils.writeStringToFile(new File(dir, "good.vt"), "Good", "UTF-8");
+        FileUtils.writeStringToFile(new File(dir, "bad.vt"), "#if(", "UTF-8");
+        ButterflyModuleImpl broken = createModule("broken", dir, _modules, new ButterflyModuleImpl());
+        try {
+            TemplatePrecompiler.precompile(Collections.<ButterflyModule>singleton(broken));
+            Assert.fail("the broken template should have failed to parse");
+        } catch (RuntimeException e) {
+            Assert.assertTrue(ExceptionUtils.getFullStackTrace(e).contains("Failed to parse template bad.vt of module broken"));
+        }
+    }
+
+    @Test(dependsOnMethods = "testPrecompile")
+    public void testSendCompressed() throws Exception {
+        File dir = new File(_dir, "big");
+        FileUtils.writeStringToFile(new File(dir, "big.vt"), StringUtils.repeat("<a href=\"[#app#]/x\">$name</a>\n", 100), "UTF-8");
+        FileUtils.writeStringToFile(new File(dir, "macros.vm"), "", "UTF-8");
+        ButterflyModuleImpl big = createModule("big", dir, _modules);
+        String expected = StringUtils.repeat("<a href=\"/ctx/app/x\">world</a>\n", 100);
+
+        // templates are rendered into a buffer and gzipped when the client takes it
+        HttpServletRequest request = request("gzip");
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        ResourceTests.BufferServletOutputStream output = new ResourceTests.BufferServletOutputStream();
+        when(response.getOutputStream()).thenReturn(output);
+        Assert.assertTrue(big.sendTextFromTemplate(request, response, context(), "big.vt", "UTF-8", "text/html", false));
+        byte[] content = output.buffer.toByteArray();
+        Assert.assertEquals(IOUtils.toString(new GZIPInputStream(new ByteArrayInputStream(content)), "UTF-8"), expected);
+        verify(response).setHeader("Content-Encoding", "gzip");
+        verify(response).setHeader("Vary", "Accept-Encoding");
+        verify(response).setContentLength(content.length);
+
+        // and streamed otherwise
+        response = mock(HttpServletResponse.class);
+        StringWriter writer = new StringWriter();
+        when(response.getWriter()).thenReturn(new PrintWriter(writer));
+        Assert.assertTrue(big.sendTextFromTemplate(request(null), response, context(), "big.vt", "UTF-8", "text/html", false));
+        Assert.assertEquals(writer.toString(), expected);
+        verify(response, never()).setHeader(eq("Content-Encoding"), eq("gzip"));
+        verify(response).setHeader("Vary", "Accept-Encoding");
+    }
+
+    private HttpServletRequest request(String acceptEncoding) {
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        when(request.getContextPath()).thenReturn("/ctx");
+        when(request.getHeader("Accept-Encoding")).thenReturn(acceptEncoding);
+        return request;
+    }
+
+    private VelocityContext context() {
+        VelocityContext context = new VelocityContext();
+        context.put("name", "world");
+        return context;
+    }
+
+    private String render(ButterflyModuleImpl module, String template) throws Exception {
+        VelocityContext context = new VelocityContext();
+        context.put("name", "world");
+        StringWriter writer = new StringWriter();
+        module.mergeTemplate(template, "UTF-8", context, writer);
+        return writer.toString();
+    }
+}
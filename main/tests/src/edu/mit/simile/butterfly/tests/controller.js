@@ -0,0 +1,42 @@
+var greeting;
+
+Greeter.prototype.shout = function(who) {
+    return this.greet(who).toUpperCase();
+};
+
+function data() {
+    var list = new java.util.ArrayList();
+    list.add("x");
+    var o = { a: 1, b: -1.5e-7, c: "q\"\\\n\u0001\u00e9/", d: [1, undefined, function() {}, null, true, NaN], e: { f: {}, g: [] } };
+    o.h = undefined;
+    o.i = list;
+    o.j = { 0: "z", length: 1 };
+    o[7] = false;
+    o.k = Infinity;
+    o.l = new String("st");
+    return o;
+}
+
+function init() {
+    greeting = "hello";
+}
+
+function process(path, request, response) {
+    if (path == "hello") {
+        butterfly.sendString(request, response, greeting + " " + module.getName(), "UTF-8", "text/plain");
+    } else if (path == "count") {
+        counter = (typeof counter == "undefined") ? 1 : counter + 1;
+        butterfly.sendString(request, response, "" + counter, "UTF-8", "text/plain");
+    } else if (path == "greet") {
+        butterfly.sendString(request, response, greeter.shout("you") + " " + (greeter instanceof Greeter), "UTF-8", "text/plain");
+    } else if (path == "json") {
+        butterfly.sendJSON(request, response, data(), true);
+    } else if (path == "jsonp") {
+        butterfly.sendJSONP(request, response, [data(), "s"], "callback");
+    } else if (path == "parse") {
+        var o = butterfly.getJSON(request);
+        butterfly.sendString(request, response, (typeof o == "undefined") ? "undefined" : butterfly.toJSONString(o), "UTF-8", "text/plain");
+    } else if (path == "tojson") {
+        butterfly.sendString(request, response, butterfly.toJSONString(7) + butterfly.toJSONString(new java.lang.StringBuilder("sb")) + butterfly.toJSONString([1, "a"]), "UTF-8", "text/plain");
+    }
+}